@@ -85,21 +85,28 @@ public class AWTStatus implements Status {
 	    frame.dispose();
     }
 
-    private void setimage(Path imgpath) throws IOException {
+    private void setimage(URI uri, Path imgpath) throws IOException {
 	Image img;
 	try(InputStream fp = Files.newInputStream(imgpath)) {
 	    img = ImageIO.read(fp);
 	}
 	SwingUtilities.invokeLater(() -> {
+		/* Another may have been asked for in the meantime. */
+		if(!Objects.equals(uri, splash))
+		    return;
 		JLabel nimage = new JLabel(new ImageIcon(img));
 		imgcont.remove(image);
 		imgcont.add(image = nimage);
 		nimage.setAlignmentX(0);
 		frame.pack();
+		shownsplash = uri;
 	    });
     }
 
-    private URI splash = null, icon = null;
+    /* What was last asked for, and what has actually been shown,
+     * so that an image that could not be fetched is tried again if
+     * it is asked for again. */
+    private volatile URI splash = null, icon = null, shownsplash = null, shownicon = null;
     public boolean command(String[] argv, Config cfg, Config.Environment env) {
 	switch(argv[0]) {
 	case "splash-image": {
@@ -107,15 +114,20 @@ public class AWTStatus implements Status {
 		throw(new RuntimeException("usage: splash-image URL"));
 	    Resource res;
 	    try {
-		res = new Resource(env.rel.resolve(new URI(expand(argv[1], env))), env.val).referrer(env.src);
+		res = env.resource(env.rel.resolve(new URI(expand(argv[1], env)))).priority(Resource.COSMETIC);
 	    } catch(URISyntaxException e) {
 		throw(new RuntimeException("usage: splash-image URL", e));
 	    }
-	    if(!Objects.equals(res.uri, splash)) {
-		try {
-		    setimage(res.update());
-		    splash = res.uri;
-		} catch(IOException e) { /* Just ignore. */ }
+	    /* Fetch it in the background, behind everything that is
+	     * needed for launching. */
+	    splash = res.uri;
+	    if(!Objects.equals(res.uri, shownsplash)) {
+		Workers.submit(res.priority, () -> {
+			try {
+			    setimage(res.uri, res.update());
+			} catch(IOException e) { /* Just ignore. */ }
+			return(null);
+		    });
 	    }
 	    return(true);
 	}
@@ -124,16 +136,24 @@ public class AWTStatus implements Status {
 		throw(new RuntimeException("usage: icon URL"));
 	    Resource res;
 	    try {
-		res = new Resource(env.rel.resolve(new URI(expand(argv[1], env))), env.val).referrer(env.src);
+		res = env.resource(env.rel.resolve(new URI(expand(argv[1], env)))).priority(Resource.COSMETIC);
 	    } catch(URISyntaxException e) {
 		throw(new RuntimeException("usage: icon URL", e));
 	    }
-	    if(!Objects.equals(res.uri, icon)) {
-		try(InputStream fp = Files.newInputStream(res.update())) {
-		    Image img = ImageIO.read(fp);
-		    SwingUtilities.invokeLater(() -> frame.setIconImage(img));
-		    icon = res.uri;
-		} catch(IOException e) { /* Just ignore. */ }
+	    icon = res.uri;
+	    if(!Objects.equals(res.uri, shownicon)) {
+		Workers.submit(res.priority, () -> {
+			try(InputStream fp = Files.newInputStream(res.update())) {
+			    Image img = ImageIO.read(fp);
+			    SwingUtilities.invokeLater(() -> {
+				    if(Objects.equals(res.uri, icon)) {
+					frame.setIconImage(img);
+					shownicon = res.uri;
+				    }
+				});
+			} catch(IOException e) { /* Just ignore. */ }
+			return(null);
+		    });
 	    }
 	    return(true);
 	}
@@ -0,0 +1,248 @@
+/*
+ *  This file is part of the Haven Java Launcher.
+ *  Copyright (C) 2019 Fredrik Tolf <fredrik@dolda2000.com>, and
+ *                     Björn Johannessen <johannessen.bjorn@gmail.com>
+ *
+ *  Redistribution and/or modification of this file is subject to the
+ *  terms of the GNU Lesser General Public License, version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  Other parts of this source tree adhere to other copying
+ *  rights. Please see the file `COPYING' in the root directory of the
+ *  source tree for details.
+ *
+ *  A copy the GNU Lesser General Public License is distributed along
+ *  with the source tree of which this file is a part in the file
+ *  `doc/LPGL-3'. If it is missing for any reason, please see the Free
+ *  Software Foundation's website at <http://www.fsf.org/>, or write
+ *  to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA
+ */
+
+package haven.launcher;
+
+import java.util.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.security.*;
+
+/*
+ * Block checksums of a file, in the manner of rsync and zsync, which
+ * can be published next to it so that a client with an older copy
+ * can find the parts it already has and fetch only the rest. The
+ * file format is the following, with all numbers big-endian:
+ *
+ *   "HLBLOCK1"
+ *   block size                (32 bits)
+ *   length of the file        (64 bits)
+ *   SHA-256 of the file       (32 bytes)
+ *   for each block:
+ *     rolling checksum        (32 bits)
+ *     SHA-256 of the block, truncated to 16 bytes
+ *
+ * Running this class with a file name writes the checksums of that
+ * file to standard output.
+ */
+public class Blocks {
+    private static final byte[] magic = "HLBLOCK1".getBytes(Utils.utf8);
+    public static final int MAXBSIZE = 1 << 20;
+    public final int bsize;
+    public final long length;
+    public final byte[] digest;
+    private final int[] weak;
+    private final byte[][] strong;
+
+    public static class FormatException extends IOException {
+	private static final long serialVersionUID = 1L;
+
+	public FormatException(String msg) {
+	    super(msg);
+	}
+    }
+
+    private Blocks(int bsize, long length, byte[] digest, int[] weak, byte[][] strong) {
+	this.bsize = bsize;
+	this.length = length;
+	this.digest = digest;
+	this.weak = weak;
+	this.strong = strong;
+    }
+
+    public int count() {
+	return(weak.length);
+    }
+
+    public long offset(int blk) {
+	return((long)blk * bsize);
+    }
+
+    public long end(int blk) {
+	return(Math.min(offset(blk + 1), length));
+    }
+
+    private static MessageDigest sha256() {
+	try {
+	    return(MessageDigest.getInstance("SHA-256"));
+	} catch(NoSuchAlgorithmException e) {
+	    throw(new AssertionError(e));
+	}
+    }
+
+    private static byte[] strong(MessageDigest dig, byte[] buf, int off, int len) {
+	dig.reset();
+	dig.update(buf, off, len);
+	return(Arrays.copyOf(dig.digest(), 16));
+    }
+
+    private static int weak(byte[] buf, int off, int len) {
+	int a = 0, b = 0;
+	for(int i = 0; i < len; i++) {
+	    int c = buf[off + i] & 0xff;
+	    a += c;
+	    b += (len - i) * c;
+	}
+	return(((b & 0xffff) << 16) | (a & 0xffff));
+    }
+
+    public static Blocks read(InputStream fp) throws IOException {
+	DataInputStream in = new DataInputStream(fp);
+	byte[] head = new byte[magic.length];
+	in.readFully(head);
+	if(!Arrays.equals(head, magic))
+	    throw(new FormatException("Not a block checksum file"));
+	int bsize = in.readInt();
+	long length = in.readLong();
+	if((bsize < 64) || (bsize > MAXBSIZE) || (length < 0) || ((length / bsize) >= (1 << 24)))
+	    throw(new FormatException("Invalid block parameters"));
+	byte[] digest = new byte[32];
+	in.readFully(digest);
+	int n = (int)((length + bsize - 1) / bsize);
+	int[] weak = new int[n];
+	byte[][] strong = new byte[n][16];
+	for(int i = 0; i < n; i++) {
+	    weak[i] = in.readInt();
+	    in.readFully(strong[i]);
+	}
+	return(new Blocks(bsize, length, digest, weak, strong));
+    }
+
+    public static Blocks compute(Path path, int bsize) throws IOException {
+	long length = Files.size(path);
+	int n = (int)((length + bsize - 1) / bsize);
+	int[] weak = new int[n];
+	byte[][] strong = new byte[n][];
+	MessageDigest whole = sha256(), blk = sha256();
+	byte[] buf = new byte[bsize];
+	try(InputStream in = new BufferedInputStream(Files.newInputStream(path))) {
+	    for(int i = 0; i < n; i++) {
+		int len = (int)Math.min(bsize, length - ((long)i * bsize));
+		new DataInputStream(in).readFully(buf, 0, len);
+		whole.update(buf, 0, len);
+		weak[i] = weak(buf, 0, len);
+		strong[i] = strong(blk, buf, 0, len);
+	    }
+	}
+	return(new Blocks(bsize, length, whole.digest(), weak, strong));
+    }
+
+    public void write(OutputStream fp) throws IOException {
+	DataOutputStream out = new DataOutputStream(fp);
+	out.write(magic);
+	out.writeInt(bsize);
+	out.writeLong(length);
+	out.write(digest);
+	for(int i = 0; i < weak.length; i++) {
+	    out.writeInt(weak[i]);
+	    out.write(strong[i]);
+	}
+	out.flush();
+    }
+
+    /*
+     * Finds the blocks that exist anywhere in the given file, and
+     * returns the offset in it of each block, or -1 for those that
+     * weren't found. Only whole blocks are looked for, so a short
+     * last block is always considered missing.
+     */
+    public long[] match(Path seed) throws IOException {
+	long[] ret = new long[weak.length];
+	Arrays.fill(ret, -1);
+	int full = (int)(length / bsize);
+	Map<Integer, List<Integer>> index = new HashMap<>();
+	for(int i = 0; i < full; i++)
+	    index.computeIfAbsent(weak[i], k -> new ArrayList<>(1)).add(i);
+	if(index.isEmpty())
+	    return(ret);
+	MessageDigest dig = sha256();
+	try(FileChannel fp = FileChannel.open(seed, StandardOpenOption.READ)) {
+	    long size = fp.size();
+	    byte[] buf = new byte[(int)Math.max(bsize * 4L, 1 << 20)];
+	    long base = 0;
+	    int len = 0;
+	    long pos = 0;
+	    int a = 0, b = 0;
+	    boolean fresh = true;
+	    while(pos + bsize <= size) {
+		/* Keep the window and the byte after it in the buffer. */
+		if(pos + bsize + 1 > base + len) {
+		    int keep = (int)(base + len - pos);
+		    System.arraycopy(buf, (int)(pos - base), buf, 0, keep);
+		    base = pos;
+		    len = keep;
+		    while(len < buf.length) {
+			int rv = fp.read(ByteBuffer.wrap(buf, len, buf.length - len), base + len);
+			if(rv < 0)
+			    break;
+			len += rv;
+		    }
+		}
+		int off = (int)(pos - base);
+		if(fresh) {
+		    int w = weak(buf, off, bsize);
+		    a = w & 0xffff;
+		    b = w >>> 16;
+		    fresh = false;
+		}
+		List<Integer> cand = index.get(((b & 0xffff) << 16) | (a & 0xffff));
+		boolean found = false;
+		if(cand != null) {
+		    byte[] s = strong(dig, buf, off, bsize);
+		    for(int blk : cand) {
+			if((ret[blk] < 0) && Arrays.equals(s, strong[blk])) {
+			    ret[blk] = pos;
+			    found = true;
+			}
+		    }
+		}
+		if(found) {
+		    pos += bsize;
+		    fresh = true;
+		} else {
+		    if(pos + bsize >= size)
+			break;
+		    int out = buf[off] & 0xff, in = buf[off + bsize] & 0xff;
+		    a += in - out;
+		    b += a - (bsize * out);
+		    pos++;
+		}
+	    }
+	}
+	return(ret);
+    }
+
+    public static void main(String[] args) throws IOException {
+	if((args.length < 1) || (args.length > 2)) {
+	    System.err.println("usage: haven.launcher.Blocks FILE [BLOCK-SIZE]");
+	    System.exit(1);
+	}
+	int bsize = (args.length > 1) ? Integer.parseInt(args[1]) : 4096;
+	compute(Utils.path(args[0]), bsize).write(new BufferedOutputStream(System.out));
+    }
+}
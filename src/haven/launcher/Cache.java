@@ -28,9 +28,14 @@ package haven.launcher;
 
 import java.io.*;
 import java.nio.file.*;
+import java.nio.file.attribute.*;
 import java.net.*;
+import java.nio.*;
 import java.nio.channels.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.zip.*;
 import javax.net.ssl.*;
 import java.security.*;
 import java.security.cert.*;
@@ -43,6 +48,10 @@ import static haven.launcher.Utils.canWrite;
 public class Cache {
     public static final String USER_AGENT;
     private final Path base;
+    private final CacheIndex index;
+    private final Throttle throttle = new Throttle();
+    private final Mirrors mirrors;
+    private final CircuitBreaker breaker = new CircuitBreaker();
 
     static {
 	StringBuilder buf = new StringBuilder();
@@ -117,6 +126,8 @@ public class Cache {
 
     public Cache() {
 	this.base = findbase();
+	this.index = new CacheIndex(local(".index"));
+	this.mirrors = new Mirrors(local(".index", "mirrors"));
     }
 
     private static Cache global = null;
@@ -168,6 +179,125 @@ public class Cache {
 	return(ret);
     }
 
+    /* Mangled names never begin with a dot, so such names are free
+     * for the cache's own bookkeeping. */
+    public Path local(String... els) {
+	return(pj(pj(base, "cache"), els));
+    }
+
+    /*
+     * Files are stored by their SHA-256, so that the same file from
+     * several places is only stored once. Since a stored file never
+     * changes, a new version never has to replace one that may be in
+     * use.
+     */
+    public Path blob(String digest) {
+	digest = digest.toLowerCase();
+	return(local(".blobs", digest.substring(0, 2), digest));
+    }
+
+    private static MessageDigest sha256() {
+	try {
+	    return(MessageDigest.getInstance("SHA-256"));
+	} catch(NoSuchAlgorithmException e) {
+	    throw(new AssertionError(e));
+	}
+    }
+
+    /* The signers a stored jar was found to have when it was
+     * verified, kept beside it, so that the same bytes never need to
+     * be verified again. */
+    static final String MEMO = ".certs";
+
+    static Path certmemo(Path blob) {
+	return(blob.resolveSibling(blob.getFileName() + MEMO));
+    }
+
+    private String verified(String digest) {
+	try {
+	    return(new String(Files.readAllBytes(certmemo(blob(digest))), Utils.utf8));
+	} catch(IOException e) {
+	    return(null);
+	}
+    }
+
+    private void verified(String digest, String certs) {
+	Path memo = certmemo(blob(digest));
+	try {
+	    Path tmp = Files.createTempFile(memo.getParent(), memo.getFileName().toString(), ".new");
+	    try {
+		Files.write(tmp, certs.getBytes(Utils.utf8));
+		Files.move(tmp, memo, StandardCopyOption.REPLACE_EXISTING);
+	    } finally {
+		Files.deleteIfExists(tmp);
+	    }
+	} catch(IOException e) {
+	    /* It will just be verified again. */
+	}
+    }
+
+    /* Where the current version of a file is, given its info. Files
+     * fetched before there was a blob store are still where their
+     * URI says. */
+    Path stored(URI uri, Properties props) {
+	String digest = (String)props.get("sha256");
+	if(digest != null) {
+	    Path ret = blob(digest);
+	    if(Files.exists(ret))
+		return(ret);
+	}
+	return(mangle(uri));
+    }
+
+    private void store(Path file, Path blob) throws IOException {
+	Files.createDirectories(blob.getParent());
+	try {
+	    try {
+		Files.move(file, blob, StandardCopyOption.ATOMIC_MOVE);
+	    } catch(AtomicMoveNotSupportedException e) {
+		Files.move(file, blob, StandardCopyOption.REPLACE_EXISTING);
+	    }
+	} catch(IOException e) {
+	    /* Someone else may just have stored the same file. */
+	    if(!Files.exists(blob))
+		throw(e);
+	    discard(file);
+	}
+    }
+
+    /* The SHA-256 of a stored file, which is known without reading
+     * it unless it was fetched before there was a blob store. Such a
+     * file is moved into the store once it has been read, so that it
+     * only ever needs to be read the once. The index lock of the file
+     * must be held. */
+    private byte[] storeddigest(URI uri, Path cur, Properties props) throws IOException {
+	String digest = (String)props.get("sha256");
+	if((digest != null) && cur.equals(blob(digest))) {
+	    try {
+		return(Utils.hex2byte(digest));
+	    } catch(IllegalArgumentException e) {
+	    }
+	}
+	byte[] ret = Patch.digest(cur);
+	digest = Utils.byte2hex(ret).toLowerCase();
+	Path blob = blob(digest);
+	if(Files.exists(blob))
+	    discard(cur);
+	else
+	    store(cur, blob);
+	props.put("sha256", digest);
+	index.put(uri, props);
+	return(ret);
+    }
+
+    public CacheIndex index() {
+	return(index);
+    }
+
+    public Mirrors mirrors() {
+	return(mirrors);
+    }
+
     public Path metafile(URI uri, String var) {
 	Path ret = mangle(uri);
 	return(ret.resolveSibling("." + ret.getFileName() + "." + var));
@@ -204,177 +334,1239 @@ public class Cache {
 	}
     }
 
-    private static boolean dokludgerepl() {
-	/*
-	 * XXX?! Windows is dumb in that there exists no good way to
-	 * replace files while they're in use. It is, however,
-	 * possible to overwrite Jar files in-place even while they're
-	 * in use by a running JVM. Doing so is real ugly since the
-	 * currently running JVM will certainly not expect them to
-	 * change under it, but it's (probably) better than just being
-	 * utterly unable to replace Jar files while a previous
-	 * instance of the program is running.
-	 *
-	 * Funnily enough, good ol' Java Web Start apparently had no
-	 * issues replacing Jar files currently in use. I do wonder if
-	 * it was doing the same thing, or if it had some clever
-	 * file-system virtualization going on.
-	 */
-	String os = System.getProperty("os.name");
-	return((os != null) && os.startsWith("Windows"));
-    }
-
-    private static void overwrite(Path dst, Path src) throws IOException {
-	try(InputStream in = Files.newInputStream(src)) {
-	    try(OutputStream out = Files.newOutputStream(dst)) {
-		byte[] buf = new byte[65536];
-		for(int rv = in.read(buf); rv >= 0; rv = in.read(buf))
-		    out.write(buf, 0, rv);
+    private static void discard(Path... files) {
+	for(Path file : files) {
+	    try {
+		Files.deleteIfExists(file);
+	    } catch(IOException e) {
+	    }
+	}
+    }
+
+    private static Properties loadprops(Path path) throws IOException {
+	Properties ret = new Properties();
+	try(Reader in = Files.newBufferedReader(path, Utils.utf8)) {
+	    ret.load(in);
+	}
+	return(ret);
+    }
+
+    private static void storeprops(Path path, Properties props) throws IOException {
+	try(Writer out = Files.newBufferedWriter(path, Utils.utf8)) {
+	    props.store(out, null);
+	}
+    }
+
+    private static long[] contentrange(String spec) {
+	if((spec == null) || !spec.startsWith("bytes "))
+	    return(null);
+	try {
+	    int p1 = spec.indexOf('-'), p2 = spec.indexOf('/');
+	    if((p1 < 0) || (p2 < p1))
+		return(null);
+	    long total = spec.substring(p2 + 1).trim().equals("*") ? -1 : Long.parseLong(spec.substring(p2 + 1).trim());
+	    return(new long[] {Long.parseLong(spec.substring(6, p1).trim()), Long.parseLong(spec.substring(p1 + 1, p2).trim()), total});
+	} catch(NumberFormatException e) {
+	    return(null);
+	}
+    }
+
+    /* Returns the number of seconds a response may be used without
+     * checking it again, or -1 if it says nothing about it. */
+    private static long lifetime(HttpURLConnection http) {
+	String cc = http.getHeaderField("Cache-Control");
+	if(cc != null) {
+	    long ret = -1;
+	    for(String dir : cc.split(",")) {
+		dir = dir.trim().toLowerCase();
+		if(dir.equals("no-cache") || dir.equals("no-store"))
+		    return(0);
+		if(dir.equals("immutable"))
+		    ret = Long.MAX_VALUE;
+		if(dir.startsWith("max-age=") && (ret != Long.MAX_VALUE)) {
+		    try {
+			ret = Long.parseLong(dir.substring(8).trim());
+		    } catch(NumberFormatException e) {
+		    }
+		}
+	    }
+	    if(ret >= 0)
+		return(ret);
+	}
+	long expires = http.getExpiration();
+	if(expires != 0) {
+	    long date = http.getDate();
+	    if(date == 0)
+		date = System.currentTimeMillis();
+	    return(Math.max((expires - date) / 1000, 0));
+	}
+	return(-1);
+    }
+
+    private static void freshness(HttpURLConnection http, Properties props) {
+	props.put("checked", Long.toString(System.currentTimeMillis()));
+	props.remove("lifetime");
+	long lifetime = lifetime(http);
+	if(lifetime >= 0)
+	    props.put("lifetime", Long.toString(lifetime));
+    }
+
+    private static boolean fresh(Resource res, Properties props) {
+	ReleaseManifest.Entry listed = ReleaseManifest.find(res);
+	if(listed != null)
+	    return(props.containsKey("sha256") && listed.matches((String)props.get("sha256")));
+	if(!props.containsKey("checked"))
+	    return(false);
+	long lifetime = res.checkint;
+	try {
+	    if(lifetime < 0)
+		lifetime = Long.parseLong((String)props.getOrDefault("lifetime", "0"));
+	    long age = System.currentTimeMillis() - Long.parseLong((String)props.get("checked"));
+	    return((age >= 0) && ((age / 1000) < lifetime));
+	} catch(NumberFormatException e) {
+	    return(false);
+	}
+    }
+
+    private static boolean identity(String enc) {
+	return((enc == null) || enc.equalsIgnoreCase("identity"));
+    }
+
+    private static boolean chunked(HttpURLConnection http) {
+	String te = http.getHeaderField("Transfer-Encoding");
+	return((te != null) && te.toLowerCase().contains("chunked"));
+    }
+
+    private static InputStream decode(InputStream in, String enc) throws IOException {
+	if(identity(enc))
+	    return(in);
+	switch(enc.toLowerCase()) {
+	case "gzip": case "x-gzip":
+	    return(new GZIPInputStream(in, 65536));
+	case "deflate":
+	    return(new InflaterInputStream(in, new Inflater(), 65536));
+	default:
+	    throw(new IOException("Unsupported content encoding: " + enc));
+	}
+    }
+
+    /*
+     * Alternate versions of files, stored with some stronger
+     * compression under the same name with an added suffix. Only gzip
+     * comes with the JDK, but extensions can register others, such as
+     * xz, and any suffix without a registered unpacker is just never
+     * tried.
+     */
+    public static interface Unpacker {
+	public InputStream unpack(InputStream in) throws IOException;
+    }
+
+    private static final Map<String, Unpacker> unpackers = new HashMap<>();
+    static {
+	unpacker("gz", in -> new GZIPInputStream(in, 65536));
+    }
+
+    public static void unpacker(String suffix, Unpacker unpacker) {
+	synchronized(unpackers) {
+	    unpackers.put(suffix, unpacker);
+	}
+    }
+
+    private static InputStream unpack(InputStream in, String variant) throws IOException {
+	if(variant == null)
+	    return(in);
+	Unpacker u;
+	synchronized(unpackers) {
+	    u = unpackers.get(variant);
+	}
+	if(u == null)
+	    throw(new IOException("No unpacker for " + variant));
+	return(u.unpack(in));
+    }
+
+    /* Lists the variants to try in order, ending with null for the
+     * file itself. Whatever was used last time is tried first. */
+    private static List<String> variants(Resource res, String last, Collection<String> skip) {
+	List<String> ret = new ArrayList<>();
+	if(res.uri.getScheme().startsWith("http")) {
+	    synchronized(unpackers) {
+		if((last != null) && res.packed.contains(last) && unpackers.containsKey(last) && !skip.contains(last))
+		    ret.add(last);
+		for(String v : res.packed) {
+		    if(unpackers.containsKey(v) && !ret.contains(v) && !skip.contains(v))
+			ret.add(v);
+		}
+	    }
+	}
+	ret.add(null);
+	return(ret);
+    }
+
+    private static final long missingttl = longprop("haven.launcher.missing-variant-ttl", 86400000);
+
+    /* Variants that a host turned out not to publish for a file are
+     * not asked for again until the file is next fetched in full, or
+     * for a day at the most, so that hosts that don't publish them
+     * at all don't cost an extra request on every check. */
+    private static Collection<String> missing(Properties props) {
+	String list = (String)props.get("missing-variants");
+	if(list == null)
+	    return(Collections.emptyList());
+	try {
+	    if(System.currentTimeMillis() - Long.parseLong((String)props.get("missing-time")) > missingttl)
+		return(Collections.emptyList());
+	} catch(NumberFormatException e) {
+	    return(Collections.emptyList());
+	}
+	return(Arrays.asList(list.split(" ")));
+    }
+
+    private static void missing(Properties props, Collection<String> variants) {
+	props.put("missing-variants", String.join(" ", variants));
+	props.put("missing-time", Long.toString(System.currentTimeMillis()));
+    }
+
+    private static URI varianturi(URI uri, String variant) throws IOException {
+	try {
+	    return(new URI(uri.getScheme(), uri.getAuthority(), uri.getPath() + "." + variant, uri.getQuery(), null));
+	} catch(URISyntaxException e) {
+	    throw(new IOException(e));
+	}
+    }
+
+    private static class Counter extends FilterInputStream {
+	long count = 0;
+
+	Counter(InputStream in) {
+	    super(in);
+	}
+
+	public int read() throws IOException {
+	    int rv = super.read();
+	    if(rv >= 0)
+		count++;
+	    return(rv);
+	}
+
+	public int read(byte[] buf, int off, int len) throws IOException {
+	    int rv = super.read(buf, off, len);
+	    if(rv > 0)
+		count += rv;
+	    return(rv);
+	}
+
+	public long skip(long n) throws IOException {
+	    long rv = super.skip(n);
+	    count += rv;
+	    return(rv);
+	}
+    }
+
+    /* Validators are kept for the decoded contents, which an
+     * encoded response's ETag is only weakly equivalent to. */
+    private static String etag(HttpURLConnection http) {
+	String etag = http.getHeaderField("ETag");
+	if(strong(etag) && !identity(http.getContentEncoding()))
+	    return("W/" + etag);
+	return(etag);
+    }
+
+    private static boolean strong(String etag) {
+	return((etag != null) && etag.startsWith("\""));
+    }
+
+    /* If-Range only works with strong validators, and a strong ETag
+     * is the more reliable of the two. */
+    private static String rangevalidator(HttpURLConnection http) {
+	String etag = http.getHeaderField("ETag");
+	if(strong(etag))
+	    return(etag);
+	return(http.getHeaderField("Last-Modified"));
+    }
+
+    private static String etagdigest(String etag) {
+	if(!strong(etag) || !etag.endsWith("\"") || (etag.length() < 2))
+	    return(null);
+	String hex = etag.substring(1, etag.length() - 1);
+	for(int i = 0; i < hex.length(); i++) {
+	    if(Character.digit(hex.charAt(i), 16) < 0)
+		return(null);
+	}
+	switch(hex.length()) {
+	case 32:  return("MD5");
+	case 40:  return("SHA-1");
+	case 64:  return("SHA-256");
+	case 128: return("SHA-512");
+	default:  return(null);
+	}
+    }
+
+    /*
+     * Servers that regenerate Last-Modified on every deploy, and
+     * don't honor If-None-Match either, can still be caught sending
+     * the same file again if their ETag is unchanged or is a hash of
+     * the contents.
+     */
+    private static boolean sameetag(Path path, Properties props, String etag) throws IOException {
+	if(!strong(etag) || !Files.exists(path))
+	    return(false);
+	if(etag.equals(props.get("etag")))
+	    return(true);
+	String alg = etagdigest(etag);
+	if(alg == null)
+	    return(false);
+	if(alg.equals("SHA-256") && props.containsKey("sha256"))
+	    return(etag.substring(1, etag.length() - 1).equalsIgnoreCase((String)props.get("sha256")));
+	try {
+	    byte[] dig = Utils.digest(path, MessageDigest.getInstance(alg));
+	    return(Utils.byte2hex(dig).equalsIgnoreCase(etag.substring(1, etag.length() - 1)));
+	} catch(NoSuchAlgorithmException e) {
+	    return(false);
+	}
+    }
+
+    /* The SHA-256 of a response, if the server says what it is, in a
+     * hash ETag or in a Digest or Repr-Digest header. */
+    private static String announced(HttpURLConnection http) {
+	String etag = http.getHeaderField("ETag");
+	if("SHA-256".equals(etagdigest(etag)))
+	    return(etag.substring(1, etag.length() - 1).toLowerCase());
+	for(String hdr : new String[] {"Repr-Digest", "Digest"}) {
+	    String val = http.getHeaderField(hdr);
+	    if(val == null)
+		continue;
+	    for(String part : val.split(",")) {
+		int p = part.indexOf('=');
+		if((p < 0) || !part.substring(0, p).trim().equalsIgnoreCase("sha-256"))
+		    continue;
+		String b64 = part.substring(p + 1).trim();
+		if(b64.startsWith(":") && b64.endsWith(":") && (b64.length() > 1))
+		    b64 = b64.substring(1, b64.length() - 1);
+		try {
+		    byte[] dig = Base64.getDecoder().decode(b64);
+		    if(dig.length == 32)
+			return(Utils.byte2hex(dig).toLowerCase());
+		} catch(IllegalArgumentException e) {
+		}
 	    }
 	}
+	return(null);
+    }
+
+    /*
+     * Opens the connections the cache fetches files over. Any
+     * connection that is an HttpsURLConnection has its server
+     * certificates recorded for the tls-cert validator, so
+     * replacements must keep providing them.
+     */
+    public static interface Transport {
+	public URLConnection open(URI uri) throws IOException;
+    }
+
+    /*
+     * The JDK keeps idle connections alive per origin, including TLS
+     * connections so long as they share socket factory, so as long as
+     * responses are consumed to their end, one connection per origin
+     * gets reused for the whole run.
+     */
+    public static class URLTransport implements Transport {
+	private static final SslHelper ssl = new SslHelper();
+	public int ctimeout = (int)longprop("haven.launcher.connect-timeout", 5000);
+	public int rtimeout = (int)longprop("haven.launcher.read-timeout", 5000);
+
+	public URLConnection open(URI uri) throws IOException {
+	    URL url = uri.toURL();
+	    URLConnection conn = ssl.connect(url);
+	    if(conn == null)
+		conn = url.openConnection();
+	    conn.setConnectTimeout(ctimeout);
+	    conn.setReadTimeout(rtimeout);
+	    return(conn);
+	}
     }
 
-    public static class FileReplaceException extends IOException implements ErrorMessage {
-	public FileReplaceException(Throwable cause) {
-	    super("could not replace out-of-date file with newly downloaded file", cause);
+    private Transport transport = new URLTransport();
+    public Transport transport() {return(transport);}
+    public void transport(Transport transport) {this.transport = transport;}
+
+    public static class StatusException extends IOException {
+	private static final long serialVersionUID = 1L;
+	public final int code;
+
+	public StatusException(int code) {
+	    super("Unexpected HTTP response code: " + code);
+	    this.code = code;
 	}
+    }
 
-	public String usermessage() {
-	    return("Could not replace out-of-date file with newly downloaded file. " +
-		   "If the program is currently running, please quit it and try again.");
+    /* Reads off an error response so that its connection can be reused. */
+    private static IOException failed(HttpURLConnection http) throws IOException {
+	int code = http.getResponseCode();
+	try(InputStream err = http.getErrorStream()) {
+	    if(err != null) {
+		byte[] buf = new byte[4096];
+		while(err.read(buf) >= 0);
+	    }
+	} catch(IOException e) {
 	}
+	return(new StatusException(code));
     }
 
-    private static final SslHelper ssl = new SslHelper();
-    private Cached update0(Resource res, boolean force) throws IOException {
+    /* Where a response actually came from, for anything more to be
+     * asked of the same place. */
+    private static URI source(URLConnection conn) throws IOException {
+	try {
+	    return(conn.getURL().toURI());
+	} catch(URISyntaxException e) {
+	    throw(new IOException(e));
+	}
+    }
+
+    private URLConnection connect(Resource res, URI uri) throws IOException {
+	URLConnection conn = transport.open(uri);
+	conn.addRequestProperty("User-Agent", USER_AGENT);
+	if(res.referrer != null)
+	    conn.addRequestProperty("Referer", String.valueOf(res.referrer));
+	if(conn instanceof HttpURLConnection)
+	    ((HttpURLConnection)conn).setUseCaches(false);
+	return(conn);
+    }
+
+    /* Sends a request to one of several possible sources, and
+     * returns false if it failed and the next should be tried. */
+    private boolean open(URLConnection conn, URI source, boolean more) throws IOException {
+	if(more)
+	    conn.setConnectTimeout(mirrors.timeout(source, conn.getConnectTimeout()));
+	long start = System.nanoTime();
+	try {
+	    conn.connect();
+	    if(conn instanceof HttpURLConnection) {
+		HttpURLConnection http = (HttpURLConnection)conn;
+		if(more && (http.getResponseCode() >= 500)) {
+		    mirrors.failed(source);
+		    failed(http);
+		    return(false);
+		}
+	    }
+	} catch(IOException e) {
+	    mirrors.failed(source);
+	    if(more)
+		return(false);
+	    throw(e);
+	}
+	mirrors.responded(source, System.nanoTime() - start);
+	return(true);
+    }
+
+    private String tlscerts(HttpsURLConnection conn) throws IOException {
+	Collection<String> certinfo = new ArrayList<>();
+	for(Certificate cert : conn.getServerCertificates())
+	    addcert(certinfo, cert);
+	return(String.join(" ", certinfo));
+    }
+
+    private static long longprop(String name, long def) {
+	try {
+	    return(Long.parseLong(System.getProperty(name, Long.toString(def))));
+	} catch(NumberFormatException e) {
+	    return(def);
+	}
+    }
+
+    private static final long segthreshold = longprop("haven.launcher.segment-threshold", 8 << 20);
+    private static final int nsegments = (int)longprop("haven.launcher.segments", 4);
+
+    private static long copy(InputStream in, FileChannel out, long pos, long end, long size, AtomicLong total, AtomicBoolean abort, Status st, AtomicLong at, Runnable moved) throws IOException {
+	byte[] buf = new byte[65536];
+	while((pos < end) && !abort.get()) {
+	    int rv = in.read(buf, 0, (int)Math.min(buf.length, end - pos));
+	    if(rv < 0)
+		break;
+	    ByteBuffer bb = ByteBuffer.wrap(buf, 0, rv);
+	    while(bb.hasRemaining())
+		pos += out.write(bb, pos);
+	    long cur = total.addAndGet(rv);
+	    if(st != null)
+		st.transfer(size, cur);
+	    if(at != null)
+		at.set(pos);
+	    if(moved != null)
+		moved.run();
+	}
+	return(pos);
+    }
+
+    /* Requests a range of the same version of a file as an earlier
+     * response, or returns null if the server won't give exactly
+     * that. */
+    private HttpURLConnection range(Resource res, URI source, long from, long to, long size, String validator, String certs) throws IOException {
+	HttpURLConnection conn = (HttpURLConnection)connect(res, source);
+	conn.setRequestProperty("Accept-Encoding", "identity");
+	conn.setRequestProperty("Range", String.format("bytes=%d-%d", from, to - 1));
+	conn.setRequestProperty("If-Range", validator);
+	conn.connect();
+	long[] range = contentrange(conn.getHeaderField("Content-Range"));
+	if(((conn instanceof HttpsURLConnection) && !tlscerts((HttpsURLConnection)conn).equals(certs)) || !identity(conn.getContentEncoding()) ||
+	   (conn.getResponseCode() != HttpURLConnection.HTTP_PARTIAL) || (range == null) ||
+	   (range[0] != from) || (range[1] != to - 1) || (range[2] != size)) {
+	    conn.disconnect();
+	    return(null);
+	}
+	return(conn);
+    }
+
+    /*
+     * Fetches a large file over several connections at once. The
+     * already opened response fetches the first segment, and the
+     * rest are requested as ranges of the same version of the
+     * file. Should any of those fail, the original response is just
+     * read to its end instead. On failure, the file is cut down to
+     * what was fetched contiguously from its start, so that it can
+     * be resumed as usual. A jar verifier, if given, is kept up to
+     * date with how much of the file is contiguously done. Segments
+     * are fetched by the worker pool, and since its workers may all
+     * be busy fetching like this, any segment that none of them has
+     * started by the time it is needed is read from the original
+     * response instead of waited for. There are only as many
+     * segments as the host has free connection slots for.
+     */
+    private long segmented(Resource res, HttpURLConnection http, InputStream in, Path newp, long size, String validator, String certs, Status st, StreamVerifier sv) throws IOException {
+	/* Only as many connections as the host has room for. */
+	URI source = source(http);
+	List<Throttle.Slot> slots = new ArrayList<>();
+	for(int i = 1; i < nsegments; i++) {
+	    Throttle.Slot slot = throttle.tryacquire(source);
+	    if(slot == null)
+		break;
+	    slots.add(slot);
+	}
+	int nseg = slots.size() + 1;
+	long[] bounds = new long[nseg + 1];
+	for(int i = 0; i <= nseg; i++)
+	    bounds[i] = (size * i) / nseg;
+	AtomicLong[] at = new AtomicLong[nseg];
+	for(int i = 0; i < nseg; i++)
+	    at[i] = new AtomicLong(bounds[i]);
+	Runnable moved = (sv == null) ? null : () -> {
+	    long done = at[0].get();
+	    for(int i = 1; (i < nseg) && (done >= bounds[i]); i++)
+		done = Math.max(done, at[i].get());
+	    sv.advance(done);
+	};
+	AtomicLong total = new AtomicLong(0);
+	AtomicBoolean abort = new AtomicBoolean(false);
+	boolean[] ok = new boolean[nseg];
+	AtomicBoolean[] started = new AtomicBoolean[nseg];
+	long pos = 0;
+	try(FileChannel out = FileChannel.open(newp, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+	    List<Future<Void>> helpers = new ArrayList<>();
+	    try {
+		for(int i = 1; i < nseg; i++) {
+		    int seg = i;
+		    started[seg] = new AtomicBoolean(false);
+		    helpers.add(Workers.submit(res.priority, () -> {
+			    if(!started[seg].compareAndSet(false, true))
+				return(null);
+			    try(Throttle.Slot slot = slots.get(seg - 1)) {
+				HttpURLConnection conn = range(res, source, bounds[seg], bounds[seg + 1], size, validator, certs);
+				if(conn == null)
+				    return(null);
+				slot.receiving();
+				try(InputStream sin = conn.getInputStream()) {
+				    long end = copy(sin, out, bounds[seg], bounds[seg + 1], size, total, abort, null, at[seg], moved);
+				    slot.transferred(end - bounds[seg]);
+				    ok[seg] = (end == bounds[seg + 1]);
+				}
+			    }
+			    return(null);
+			}));
+		}
+		try {
+		    pos = copy(in, out, pos, bounds[1], size, total, abort, st, at[0], moved);
+		} finally {
+		    if(pos < bounds[1])
+			abort.set(true);
+		    for(int i = 1; i < nseg; i++) {
+			if(started[i].compareAndSet(false, true)) {
+			    helpers.get(i - 1).cancel(false);
+			    continue;
+			}
+			while(true) {
+			    try {
+				helpers.get(i - 1).get(100, TimeUnit.MILLISECONDS);
+				break;
+			    } catch(TimeoutException e) {
+				st.transfer(size, total.get());
+			    } catch(ExecutionException e) {
+				break;
+			    }
+			}
+		    }
+		}
+		boolean all = (pos == bounds[1]);
+		for(int i = 1; i < nseg; i++)
+		    all &= ok[i];
+		if(all) {
+		    http.disconnect();
+		    return(size);
+		}
+		/* Fall back to reading the rest from the original response. */
+		total.set(pos);
+		pos = copy(in, out, pos, size, size, total, abort, st, at[0], moved);
+		out.truncate(pos);
+		return(pos);
+	    } catch(InterruptedException e) {
+		abort.set(true);
+		out.truncate(pos);
+		throw((IOException)new InterruptedIOException().initCause(e));
+	    } catch(IOException e) {
+		out.truncate(pos);
+		throw(e);
+	    }
+	} finally {
+	    for(Throttle.Slot slot : slots)
+		slot.close();
+	}
+    }
+
+    private static final long blockthreshold = longprop("haven.launcher.block-threshold", 1 << 20);
+
+    /*
+     * Rebuilds a changed file from the parts of the cached copy that
+     * are still the same, using block checksums published next to it
+     * as <uri>.blocks, and fetches only the rest as ranges. Returns
+     * false, leaving the original response to be read instead, if no
+     * usable checksums are published or nothing would be gained.
+     */
+    private Blocks blocks(Resource res, HttpURLConnection http, String certs) throws IOException {
+	/* The response is still open, so this is one more connection. */
+	try(Throttle.Slot slot = throttle.tryacquire(source(http))) {
+	    if(slot == null)
+		return(null);
+	    URLConnection bconn = connect(res, varianturi(source(http), "blocks"));
+	    if(!(bconn instanceof HttpURLConnection))
+		return(null);
+	    HttpURLConnection bhttp = (HttpURLConnection)bconn;
+	    bhttp.setRequestProperty("Accept-Encoding", "gzip, deflate");
+	    bhttp.connect();
+	    if(bhttp.getResponseCode() != HttpURLConnection.HTTP_OK) {
+		failed(bhttp);
+		return(null);
+	    }
+	    if((bhttp instanceof HttpsURLConnection) && !tlscerts((HttpsURLConnection)bhttp).equals(certs)) {
+		bhttp.disconnect();
+		return(null);
+	    }
+	    try(InputStream in = decode(bhttp.getInputStream(), bhttp.getContentEncoding())) {
+		return(Blocks.read(in));
+	    } catch(Blocks.FormatException e) {
+		return(null);
+	    }
+	}
+    }
+
+    private boolean blockfetch(Resource res, HttpURLConnection http, Path path, Path newp, long size, String validator, String certs, Status st) throws IOException {
+	Blocks blocks = blocks(res, http, certs);
+	/* Checksums of some other version are of no use. */
+	if((blocks == null) || (blocks.length != size))
+	    return(false);
+	long[] found = blocks.match(path);
+	List<long[]> missing = new ArrayList<>();
+	long need = 0;
+	for(int i = 0; i < found.length; i++) {
+	    if(found[i] >= 0)
+		continue;
+	    long from = blocks.offset(i), to = blocks.end(i);
+	    long[] last = missing.isEmpty() ? null : missing.get(missing.size() - 1);
+	    /* Refetching a few blocks is cheaper than another request. */
+	    if((last != null) && (from - last[1] <= 4L * blocks.bsize)) {
+		need += to - last[1];
+		last[1] = to;
+	    } else {
+		need += to - from;
+		missing.add(new long[] {from, to});
+	    }
+	}
+	if(need >= size)
+	    return(false);
+	http.disconnect();
+	st.messagef("Fetching changes to %s...", Utils.basename(res.uri));
+	MessageDigest dig = sha256();
+	AtomicLong total = new AtomicLong(0);
+	AtomicBoolean abort = new AtomicBoolean(false);
+	st.transfer(need, 0);
+	try(FileChannel out = FileChannel.open(newp, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+	    FileChannel seed = FileChannel.open(path, StandardOpenOption.READ)) {
+	    for(int i = 0; i < found.length; i++) {
+		if(found[i] < 0)
+		    continue;
+		long pos = blocks.offset(i), len = blocks.end(i) - pos;
+		for(long done = 0; done < len;)
+		    done += seed.transferTo(found[i] + done, len - done, out.position(pos + done));
+	    }
+	    for(long[] rng : missing) {
+		HttpURLConnection conn = range(res, source(http), rng[0], rng[1], size, validator, certs);
+		if(conn == null)
+		    throw(new IOException("Could not fetch range of " + res.uri));
+		try(InputStream in = conn.getInputStream()) {
+		    if(copy(in, out, rng[0], rng[1], need, total, abort, st, null, null) != rng[1])
+			throw(new IOException("Premature EOF"));
+		}
+	    }
+	    out.position(0);
+	    InputStream in = Channels.newInputStream(out);
+	    byte[] buf = new byte[65536];
+	    for(int rv = in.read(buf); rv >= 0; rv = in.read(buf))
+		dig.update(buf, 0, rv);
+	    if((out.size() != size) || !MessageDigest.isEqual(dig.digest(), blocks.digest))
+		throw(new IOException("Rebuilt file does not match its block checksums"));
+	} catch(IOException e) {
+	    /* Retries will fetch the whole file instead. */
+	    discard(newp);
+	    throw(e);
+	}
+	return(true);
+    }
+
+    private Cached update0(Resource res, boolean force, boolean net, AtomicReference<URI> from) throws IOException {
 	URI uri = res.uri;
 	try(Status st = Status.current()) {
 	    st.messagef("Checking %s...", Utils.basename(uri));
 	    Path path = mangle(uri);
-	    Path infop = metafile(uri, "info");
 	    Path newp = metafile(uri, "new");
+	    Path partp = metafile(uri, "part");
 	    Path dir = path.getParent();
 	    if(!Files.isDirectory(dir))
 		Files.createDirectories(dir);
-	    FileChannel fp = FileChannel.open(infop, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
-	    Properties props = new Properties();
 	    Properties nprops = new Properties();
 	    nprops.put("source", uri.toString());
-	    try(FileLock lk = fp.lock()) {
-		fp.position(0);
-		props.load(new BufferedReader(new InputStreamReader(Channels.newInputStream(fp), Utils.utf8)));
+	    Throttle.Slot slot = null;
+	    String slothost = null;
+	    FileLock lk = index.lock(uri);
+	    try {
+		Properties props = index.get(uri);
+		Path cur = stored(uri, props);
+		if(!force && fresh(res, props) && Files.exists(cur)) {
+		    /* Last use only matters to the hour, so don't write
+		     * the index on every launch just for that. */
+		    if(System.currentTimeMillis() - lastuse(props) > 3600000) {
+			props.put("used", Long.toString(System.currentTimeMillis()));
+			index.put(uri, props);
+		    }
+		    return(new Cached(cur, props, false));
+		}
+		/* Check for an interrupted earlier transfer */
+		Properties part = null;
+		long offset = 0;
+		if(Files.exists(newp) && Files.exists(partp)) {
+		    part = loadprops(partp);
+		    if(uri.toString().equals(part.get("source")) && part.containsKey("validator"))
+			offset = Files.size(newp);
+		}
 		/* Set up connection parameters */
-		URL url = uri.toURL();
-		URLConnection conn = null;
-		if(conn == null)
-		    conn = ssl.connect(url);
-		if(conn == null)
-		    conn = uri.toURL().openConnection();
-		conn.setConnectTimeout(5000);
-		conn.setReadTimeout(5000);
-		HttpURLConnection http = (conn instanceof HttpURLConnection) ? ((HttpURLConnection)conn) : null;
-		conn.addRequestProperty("User-Agent", USER_AGENT);
-		if(res.referrer != null)
-		    conn.addRequestProperty("Referer", String.valueOf(res.referrer));
-		if(http != null) {
-		    http.setUseCaches(false);
-		    if(!force && props.containsKey("mtime"))
-			http.setRequestProperty("If-Modified-Since", (String)props.get("mtime"));
+		URLConnection conn;
+		HttpURLConnection http;
+		String variant;
+		boolean cond;
+		byte[] basedig = null;
+		List<URI> sources = mirrors.sources(uri);
+		URI source;
+		Collection<String> skip = force ? Collections.emptyList() : missing(props);
+		List<String> missing = new ArrayList<>();
+		for(Iterator<String> vi = variants(res, (String)props.get("variant"), skip).iterator();;) {
+		    variant = vi.next();
+		    /* The stored validators only apply to the variant they were fetched from. */
+		    cond = !force && Objects.equals(variant, props.get("variant"));
+		    if(variant != null)
+			offset = 0;
+		    /* Mirrors are tried in turn until one responds. */
+		    for(Iterator<URI> si = sources.iterator();;) {
+			source = si.next();
+			from.set(source);
+			if(net && !Objects.equals(source.getAuthority(), slothost)) {
+			    /* Wait for the host that is actually asked. */
+			    if(slot != null)
+				slot.close();
+			    slot = throttle.acquire(source, res.priority);
+			    slothost = source.getAuthority();
+			}
+			conn = connect(res, (variant == null) ? source : varianturi(source, variant));
+			http = (conn instanceof HttpURLConnection) ? ((HttpURLConnection)conn) : null;
+			if(http != null) {
+			    if(cond && props.containsKey("mtime"))
+				http.setRequestProperty("If-Modified-Since", (String)props.get("mtime"));
+			    if(cond && props.containsKey("etag"))
+				http.setRequestProperty("If-None-Match", (String)props.get("etag"));
+			    if(offset > 0) {
+				/* Ranges of encoded content cannot be stitched
+				 * together. Whichever source the rest is asked
+				 * of, one that doesn't have the same file just
+				 * sends all of it. */
+				http.setRequestProperty("Accept-Encoding", "identity");
+				http.setRequestProperty("Range", String.format("bytes=%d-", offset));
+				http.setRequestProperty("If-Range", (String)part.get("validator"));
+			    } else {
+				http.setRequestProperty("Accept-Encoding", "gzip, deflate");
+			    }
+			    if(cond && (offset == 0) && Files.exists(cur)) {
+				/* Let the server send only the difference, if it can. */
+				if(basedig == null) {
+				    basedig = storeddigest(uri, cur, props);
+				    cur = stored(uri, props);
+				}
+				http.setRequestProperty("A-IM", Patch.FORMAT);
+				http.setRequestProperty("X-Base-SHA256", Utils.byte2hex(basedig).toLowerCase());
+			    }
+			}
+			if(open(conn, source, si.hasNext()))
+			    break;
+		    }
+		    if(vi.hasNext() && ((http.getResponseCode() == HttpURLConnection.HTTP_NOT_FOUND) || (http.getResponseCode() == HttpURLConnection.HTTP_GONE))) {
+			failed(http);
+			missing.add(variant);
+			continue;
+		    }
+		    break;
 		}
-		conn.connect();
 		/* Inspect connection state */
-		if(conn instanceof HttpsURLConnection) {
-		    Collection<String> certinfo = new ArrayList<>();
-		    for(Certificate cert : ((HttpsURLConnection)conn).getServerCertificates())
-			addcert(certinfo, cert);
-		    nprops.put("tls-certs", String.join(" ", certinfo));
+		if(conn instanceof HttpsURLConnection)
+		    nprops.put("tls-certs", tlscerts((HttpsURLConnection)conn));
+		if((http != null) && (http.getResponseCode() == 416)) {
+		    /* Whatever was there before, it is no good now. */
+		    discard(newp, partp);
+		    failed(http);
+		    throw(new IOException("Could not resume transfer"));
 		}
-		long bytes = 0, expected = -1;
-		try(InputStream in = conn.getInputStream()) {
+		if((http != null) && (http.getResponseCode() >= 400))
+		    throw(failed(http));
+		long bytes = 0, raw = 0, expected = -1;
+		String reuse = null, sum = null;
+		StreamVerifier sv = null;
+		boolean identity = true, patched = false;
+		try(InputStream in = (sources.size() > 1) ? mirrors.watch(source, conn.getInputStream()) : conn.getInputStream()) {
+		    boolean append = false, blocked = false;
 		    if(http != null) {
+			identity = identity(http.getContentEncoding());
 			expected = http.getContentLengthLong();
-			if(!force && (http.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED)) {
-			    return(new Cached(path, props, false));
+			if(cond && ((http.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) ||
+				      ((http.getResponseCode() == HttpURLConnection.HTTP_OK) && sameetag(cur, props, etag(http))))) {
+			    if(http.getResponseCode() != HttpURLConnection.HTTP_NOT_MODIFIED) {
+				http.disconnect();
+				String mtime = http.getHeaderField("Last-Modified");
+				if(mtime != null)
+				    props.put("mtime", mtime);
+			    }
+			    discard(newp, partp);
+			    String etag = etag(http);
+			    if(etag != null)
+				props.put("etag", etag);
+			    freshness(http, props);
+			    if(!missing.isEmpty()) {
+				Set<String> all = new LinkedHashSet<>(skip);
+				all.addAll(missing);
+				missing(props, all);
+			    }
+			    props.put("used", Long.toString(System.currentTimeMillis()));
+			    index.put(uri, props);
+			    return(new Cached(cur, props, false));
+			}
+			if((http.getResponseCode() == HttpURLConnection.HTTP_OK) && identity && (variant == null)) {
+			    /* Nothing needs fetching if the same file is already stored. */
+			    String digest = announced(http);
+			    if((digest != null) && Files.exists(blob(digest))) {
+				http.disconnect();
+				reuse = digest;
+			    }
 			}
-			if(http.getResponseCode() != HttpURLConnection.HTTP_OK)
+			if((offset > 0) && (http.getResponseCode() == HttpURLConnection.HTTP_PARTIAL)) {
+			    long[] range = contentrange(http.getHeaderField("Content-Range"));
+			    if((range == null) || (range[0] != offset) || !identity) {
+				discard(newp, partp);
+				throw(new IOException("Unexpected content range: " + http.getHeaderField("Content-Range")));
+			    }
+			    append = true;
+			    bytes = raw = offset;
+			    if(expected >= 0)
+				expected += offset;
+			} else if((basedig != null) && (http.getResponseCode() == 226)) {
+			    if(!Patch.FORMAT.equals(http.getHeaderField("IM")))
+				throw(new IOException("Unexpected instance manipulation: " + http.getHeaderField("IM")));
+			    patched = true;
+			} else if(http.getResponseCode() != HttpURLConnection.HTTP_OK) {
 			    throw(new IOException("Unexpected HTTP response code: " + http.getResponseCode()));
+			}
+			if(!append && !patched && (reuse == null)) {
+			    /* Remember enough to be able to resume this transfer if it fails. */
+			    discard(partp);
+			    String validator = rangevalidator(http);
+			    if((validator != null) && identity && (variant == null)) {
+				Properties npart = new Properties();
+				npart.put("source", uri.toString());
+				npart.put("validator", validator);
+				storeprops(partp, npart);
+			    }
+			}
 		    }
 		    /* Fetch file */
+		    if((slot != null) && (reuse == null))
+			slot.receiving();
 		    st.messagef("Fetching %s...", Utils.basename(uri));
-		    st.transfer(expected, 0);
-		    byte[] buf = new byte[65536];
-		    try(OutputStream out = Files.newOutputStream(newp)) {
-			for(int rv = in.read(buf); rv >= 0; rv = in.read(buf)) {
-			    out.write(buf, 0, rv);
-			    bytes += rv;
-			    st.transfer(expected, bytes);
+		    st.transfer(expected, bytes);
+		    String validator = (http == null) ? null : rangevalidator(http);
+		    if((reuse == null) && cond && !append && !patched && identity && (variant == null) && (validator != null) && (expected >= blockthreshold) &&
+		       "bytes".equals(http.getHeaderField("Accept-Ranges")) && Files.exists(cur)) {
+			blocked = blockfetch(res, http, cur, newp, expected, validator, (String)nprops.get("tls-certs"), st);
+		    }
+		    if((reuse != null) || blocked) {
+			bytes = raw = expected;
+		    } else if(patched) {
+			st.messagef("Patching %s...", Utils.basename(uri));
+			Counter cin = new Counter(in);
+			try {
+			    Patch.apply(cur, basedig, decode(cin, http.getContentEncoding()), newp);
+			} catch(Patch.FormatException e) {
+			    /* Retries will fetch the whole file instead. */
+			    discard(newp);
+			    throw(e);
 			}
+			raw = cin.count;
+			st.transfer(expected, raw);
+		    } else if(!append && identity && (variant == null) && (http != null) && (validator != null) && (expected >= segthreshold) && (nsegments > 1) &&
+		       "bytes".equals(http.getHeaderField("Accept-Ranges"))) {
+			if("application/java-archive".equals(conn.getContentType()))
+			    sv = new StreamVerifier(newp);
+			try {
+			    bytes = raw = segmented(res, http, in, newp, expected, validator, (String)nprops.get("tls-certs"), st, sv);
+			} catch(IOException | RuntimeException e) {
+			    if(sv != null)
+				sv.abort();
+			    throw(e);
+			}
+			if(sv != null) {
+			    sv.advance(bytes);
+			    sv.finish();
+			}
+		    } else {
+			Counter cin = new Counter(in);
+			byte[] buf = new byte[65536];
+			/* A resumed file would have to be read back anyway. */
+			MessageDigest dig = append ? null : sha256();
+			try(InputStream din = unpack(decode(cin, (http == null) ? null : http.getContentEncoding()), variant);
+			    OutputStream out = append ? Files.newOutputStream(newp, StandardOpenOption.APPEND) : Files.newOutputStream(newp)) {
+			    String type = (variant == null) ? conn.getContentType() : URLConnection.guessContentTypeFromName(uri.getPath());
+			    if("application/java-archive".equals(type)) {
+				sv = new StreamVerifier(newp);
+				sv.advance(bytes);
+			    }
+			    for(int rv = din.read(buf); rv >= 0; rv = din.read(buf)) {
+				out.write(buf, 0, rv);
+				if(dig != null)
+				    dig.update(buf, 0, rv);
+				bytes += rv;
+				st.transfer(expected, raw + cin.count);
+				if(sv != null)
+				    sv.advance(bytes);
+			    }
+			} catch(IOException | RuntimeException e) {
+			    if(sv != null)
+				sv.abort();
+			    throw(e);
+			}
+			if(sv != null)
+			    sv.finish();
+			if(dig != null)
+			    sum = Utils.byte2hex(dig.digest()).toLowerCase();
+			raw += cin.count;
 		    }
 		}
+		/* Let others at the host while this is verified. */
+		if(slot != null)
+		    slot.transferred(raw);
 		/* Check completion parameters */
 		if(http != null) {
-		    long clen = http.getContentLengthLong();
-		    /* Because, apparently, Java doesn't make this check itself. */
-		    if(clen != bytes)
+		    /*
+		     * Because, apparently, Java doesn't make this check
+		     * itself. Without a length, only a chunked transfer,
+		     * which Java does check, or contents that are checked
+		     * as they are decoded or patched, can be known to be
+		     * complete. A plain response that just ends when the
+		     * connection is closed cannot.
+		     */
+		    if(expected >= 0) {
+			if(expected != raw)
+			    throw(new IOException("Premature EOF"));
+		    } else if(identity && (variant == null) && !patched && (reuse == null) && !chunked(http)) {
 			throw(new IOException("Premature EOF"));
+		    }
 		    String mtime = http.getHeaderField("Last-Modified");
 		    if(mtime != null)
 			nprops.put("mtime", mtime);
+		    String etag = etag(http);
+		    if(etag != null)
+			nprops.put("etag", etag);
+		    freshness(http, nprops);
 		}
 		String ctype = conn.getContentType();
+		if(!missing.isEmpty())
+		    missing(nprops, missing);
+		if(variant != null) {
+		    nprops.put("variant", variant);
+		    ctype = URLConnection.guessContentTypeFromName(uri.getPath());
+		}
+		if((http != null) && (http.getResponseCode() == 226)) {
+		    /* The patched file keeps the type it had. */
+		    ctype = (String)props.get("ctype");
+		}
 		if(ctype != null)
 		    nprops.put("ctype", ctype);
-		if(ctype.equals("application/java-archive")) {
-		    st.messagef("Verifying %s...", Utils.basename(uri));
-		    Collection<String> certinfo = new ArrayList<>();
-		    for(Certificate cert : Utils.checkjar(newp, st))
-			addcert(certinfo, cert);
-		    if(!certinfo.isEmpty())
-			nprops.put("jar-certs", String.join(" ", certinfo));
-		}
-		/* Commit file */
-		fp.position(0); fp.truncate(0);
-		try {
-		    try {
-			Files.move(newp, path, StandardCopyOption.ATOMIC_MOVE);
-		    } catch(AtomicMoveNotSupportedException e) {
-			Files.move(newp, path, StandardCopyOption.REPLACE_EXISTING);
-		    }
-		} catch(IOException e) {
-		    if(!dokludgerepl())
-			throw(e);
-		    try {
-			overwrite(path, newp);
+		Path got = (reuse != null) ? blob(reuse) : newp;
+		String digest = (reuse != null) ? reuse : (sum != null) ? sum : Utils.byte2hex(Patch.digest(newp)).toLowerCase();
+		String jarcerts = null;
+		boolean memo = false;
+		ReleaseManifest.Entry listed = ReleaseManifest.find(res);
+		if("application/java-archive".equals(ctype)) {
+		    jarcerts = verified(digest);
+		    if((jarcerts == null) && (listed != null) && listed.matches(digest)) {
+			/* Validation goes by the release manifest alone. */
+			if(sv != null)
+			    sv.abort();
+		    } else if(jarcerts != null) {
+			if(sv != null)
+			    sv.abort();
+		    } else {
+			st.messagef("Verifying %s...", Utils.basename(uri));
+			Collection<String> certinfo = new ArrayList<>();
+			Certificate[] certs;
 			try {
-			    Files.delete(newp);
-			} catch(IOException ign) {
+			    certs = (sv == null) ? null : sv.result();
+			    if(certs == null)
+				certs = Utils.checkjar(got, st);
+			} catch(IOException | RuntimeException e) {
+			    /* Don't try to resume a broken file. */
+			    discard(got, newp, partp);
+			    throw(e);
 			}
-		    } catch(IOException e2) {
-			e2.addSuppressed(e);
-			throw(new FileReplaceException(e2));
+			for(Certificate cert : certs)
+			    addcert(certinfo, cert);
+			jarcerts = String.join(" ", certinfo);
+			memo = true;
 		    }
+		    if((jarcerts != null) && !jarcerts.isEmpty())
+			nprops.put("jar-certs", jarcerts);
 		}
-		Writer propout = new BufferedWriter(new OutputStreamWriter(Channels.newOutputStream(fp), Utils.utf8));
-		nprops.store(propout, null);
-		propout.flush();
-		return(new Cached(path, nprops, true));
+		/* Commit file */
+		Path blob = blob(digest);
+		if(Files.exists(blob)) {
+		    discard(newp);
+		    /* Mark it as new, for anything that checks what's changed. */
+		    Files.setLastModifiedTime(blob, FileTime.fromMillis(System.currentTimeMillis()));
+		} else {
+		    store(newp, blob);
+		}
+		if(memo)
+		    verified(digest, jarcerts);
+		nprops.put("sha256", digest);
+		discard(path);
+		discard(partp);
+		nprops.put("used", Long.toString(System.currentTimeMillis()));
+		index.put(uri, nprops);
+		/* A collector in another process may have taken it just before. */
+		if(!Files.exists(blob))
+		    throw(new IOException("Stored file disappeared: " + blob));
+		return(new Cached(blob, nprops, true));
+	    } finally {
+		if(slot != null)
+		    slot.close();
+		lk.release();
 	    }
 	}
     }
 
+    /* Digests of stored files are otherwise only computed when they
+     * are fetched, so any other kind asked for is remembered once it
+     * has been computed. */
+    public void digest(URI uri, Cached file, String prop, String alg) throws IOException {
+	if(file.props.containsKey(prop))
+	    return;
+	String hex;
+	try {
+	    hex = Utils.byte2hex(Utils.digest(file.path, MessageDigest.getInstance(alg))).toLowerCase();
+	} catch(NoSuchAlgorithmException e) {
+	    return;
+	}
+	file.props.put(prop, hex);
+	synchronized(index.monitor(uri)) {
+	    FileLock lk = index.lock(uri);
+	    try {
+		Properties props = index.get(uri);
+		if(!props.containsKey(prop) && stored(uri, props).equals(file.path)) {
+		    props.put(prop, hex);
+		    index.put(uri, props);
+		}
+	    } finally {
+		lk.release();
+	    }
+	}
+    }
+
+    static long lastuse(Properties props) {
+	for(String key : new String[] {"used", "checked"}) {
+	    try {
+		if(props.containsKey(key))
+		    return(Long.parseLong((String)props.get(key)));
+	    } catch(NumberFormatException e) {
+	    }
+	}
+	return(0);
+    }
+
+    private final Set<URI> used = new HashSet<>();
+
+    /* Everything asked for during this run, which is what the
+     * current launch depends on. */
+    public Set<URI> used() {
+	synchronized(used) {
+	    return(new HashSet<>(used));
+	}
+    }
+
+    public void collect() {
+	try {
+	    new Collector(this).run(used());
+	} catch(IOException e) {
+	    /* Just try again next time. */
+	}
+    }
+
+    private boolean current(Resource res) throws IOException {
+	Properties props = index.get(res.uri);
+	return(fresh(res, props) && Files.exists(stored(res.uri, props)));
+    }
+
+    /* Failures that say nothing about the file, only that the server
+     * could not be reached just then. */
+    private static boolean unreachable(IOException e) {
+	return((e instanceof SocketException) || (e instanceof SocketTimeoutException) || (e instanceof UnknownHostException) ||
+	       (e instanceof Mirrors.StallException) || ((e instanceof StatusException) && (((StatusException)e).code >= 500)));
+    }
+
+    private static final long retrydelay = longprop("haven.launcher.retry-delay", 500);
+    private static final long negativettl = longprop("haven.launcher.negative-ttl", 30000);
+    private final Map<URI, Failure> down = new HashMap<>();
+
+    private static class Failure {
+	final IOException error;
+	final long time = System.currentTimeMillis();
+
+	Failure(IOException error) {this.error = error;}
+    }
+
+    /* Waits exponentially longer between each retry, but by a random
+     * amount, so that failing fetches don't all retry in step. */
+    private static void backoff(int retry) throws IOException {
+	long max = retrydelay << (retry - 1);
+	try {
+	    Thread.sleep((max / 2) + ThreadLocalRandom.current().nextLong((max / 2) + 1));
+	} catch(InterruptedException e) {
+	    throw((IOException)new InterruptedIOException().initCause(e));
+	}
+    }
+
+    /* When the server can't be reached, what was fetched before is
+     * better than nothing, unless that is what was found wanting. */
+    private Cached fallback(Resource res, boolean force, IOException error) throws IOException {
+	if(force)
+	    throw(error);
+	synchronized(index.monitor(res.uri)) {
+	    FileLock lk = index.lock(res.uri);
+	    try {
+		Properties props = index.get(res.uri);
+		Path cur = stored(res.uri, props);
+		if(props.containsKey("source") && Files.exists(cur))
+		    return(new Cached(cur, props, false));
+	    } finally {
+		lk.release();
+	    }
+	}
+	throw(error);
+    }
+
     public Cached update(Resource res, boolean force) throws IOException {
+	synchronized(used) {
+	    used.add(res.uri);
+	}
+	/* Only what needs the network needs to wait for it. */
+	boolean net = force || !current(res);
+	if(net) {
+	    Failure known;
+	    synchronized(down) {
+		known = down.get(res.uri);
+	    }
+	    if((known != null) && (System.currentTimeMillis() - known.time < negativettl))
+		return(fallback(res, force, known.error));
+	}
+	/* Any mirror that is not known to be down will do. */
+	URI allowed = null;
+	if(net) {
+	    for(URI source : mirrors.sources(res.uri)) {
+		if(breaker.allow(source)) {
+		    allowed = source;
+		    break;
+		}
+	    }
+	    if(allowed == null)
+		return(fallback(res, force, new ConnectException("Giving up on " + res.uri.getAuthority() + " for now")));
+	}
 	List<IOException> errors = new ArrayList<>();
-	for(int retry = 0; retry < 3; retry++) {
-	    try {
-		return(update0(res, force));
-	    } catch(IOException e) {
-		errors.add(e);
+	boolean forced = force, offline = true;
+	try {
+	    for(int retry = 0; retry < 3; retry++) {
+		if(retry > 0)
+		    backoff(retry);
+		/* Whichever source was actually asked. */
+		AtomicReference<URI> from = new AtomicReference<>(res.uri);
+		try {
+		    Cached ret;
+		    synchronized(index.monitor(res.uri)) {
+			ret = update0(res, force, net, from);
+		    }
+		    if(net) {
+			breaker.succeeded(from.get());
+			synchronized(down) {
+			    down.remove(res.uri);
+			}
+		    }
+		    return(ret);
+		} catch(IOException e) {
+		    errors.add(e);
+		    if(unreachable(e)) {
+			/* Keep the request conditional, since nothing is
+			 * known to be wrong with the cached copy. */
+			if(breaker.failed(from.get()))
+			    break;
+		    } else {
+			/* The source answered, however badly. */
+			if(net)
+			    breaker.succeeded(from.get());
+			offline = false;
+			force = net = true;
+		    }
+		}
 	    }
-	    force = true;
+	} finally {
+	    /* Don't leave a trial request outstanding, however it ended. */
+	    if(allowed != null)
+		breaker.settle(allowed);
 	}
 	IOException first = errors.get(0);
 	for(int i = 1; i < errors.size(); i++)
 	    first.addSuppressed(errors.get(i));
+	if(offline) {
+	    synchronized(down) {
+		down.put(res.uri, new Failure(first));
+	    }
+	    return(fallback(res, forced, first));
+	}
 	throw(first);
     }
 }
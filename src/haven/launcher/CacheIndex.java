@@ -0,0 +1,547 @@
+/*
+ *  This file is part of the Haven Java Launcher.
+ *  Copyright (C) 2019 Fredrik Tolf <fredrik@dolda2000.com>, and
+ *                     Björn Johannessen <johannessen.bjorn@gmail.com>
+ *
+ *  Redistribution and/or modification of this file is subject to the
+ *  terms of the GNU Lesser General Public License, version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  Other parts of this source tree adhere to other copying
+ *  rights. Please see the file `COPYING' in the root directory of the
+ *  source tree for details.
+ *
+ *  A copy the GNU Lesser General Public License is distributed along
+ *  with the source tree of which this file is a part in the file
+ *  `doc/LPGL-3'. If it is missing for any reason, please see the Free
+ *  Software Foundation's website at <http://www.fsf.org/>, or write
+ *  to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA
+ */
+
+package haven.launcher;
+
+import java.util.*;
+import java.util.zip.*;
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+
+/*
+ * The metadata of all cached files, kept in a single append-only
+ * journal of records, with a memory-mapped hash table from each
+ * source URI to its latest record. Each record is
+ *
+ *   length of the payload      (32 bits)
+ *   CRC-32 of the payload      (32 bits)
+ *   payload: the URI and then each property, as length-prefixed
+ *            UTF-8 strings, after a count of the properties, which
+ *            is -1 for a removed entry.
+ *
+ * The table remembers how much of the journal it covers, so records
+ * appended by a process that crashed before updating the table are
+ * replayed, up to the first one that didn't get written out whole.
+ *
+ * When the journal has grown too much with superseded records, or
+ * the table is getting full, both are rewritten as a new generation,
+ * whose number is kept in the lock file. Files of old generations
+ * are never written to again, so processes that still have them
+ * open notice the change and reopen.
+ */
+public class CacheIndex {
+    private static final byte[] jmagic = "HLJRNL01".getBytes(Utils.utf8);
+    private static final byte[] tmagic = "HLINDX01".getBytes(Utils.utf8);
+    private static final int JHEAD = 16, THEAD = 40, SLOT = 16;
+    private static final int REGIONS = 65536;
+    private final Path dir;
+    private final Object[] regions = new Object[REGIONS];
+    private FileChannel lockf = null;
+    private long gen = 0;
+    private FileChannel journal = null;
+    private MappedByteBuffer table = null;
+    private int capacity;
+
+    public CacheIndex(Path dir) {
+	this.dir = dir;
+	for(int i = 0; i < REGIONS; i++)
+	    regions[i] = new Object();
+    }
+
+    private static long hash(String key) {
+	long h = 0xcbf29ce484222325L;
+	for(byte b : key.getBytes(Utils.utf8)) {
+	    h ^= (b & 0xff);
+	    h *= 0x100000001b3L;
+	}
+	return((h == 0) ? 1 : h);
+    }
+
+    private synchronized FileChannel lockfile() throws IOException {
+	if(lockf == null) {
+	    Files.createDirectories(dir);
+	    lockf = FileChannel.open(dir.resolve("lock"), StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+	}
+	return(lockf);
+    }
+
+    /* Entries are locked, across processes, by one byte each of the
+     * lock file, hashed into a fixed number of regions. Since file
+     * locks are held by the whole JVM, threads must also hold the
+     * region's monitor. */
+    private static int region(URI uri) {
+	return((int)(hash(uri.toString()) >>> 48));
+    }
+
+    public Object monitor(URI uri) {
+	return(regions[region(uri)]);
+    }
+
+    public FileLock lock(URI uri) throws IOException {
+	return(lockfile().lock(4096 + region(uri), 1, false));
+    }
+
+    /* Held by whichever process is collecting garbage. Returns null
+     * if another one already is. */
+    public FileLock lockcollector() throws IOException {
+	return(lockfile().tryLock(2048, 1, false));
+    }
+
+    /* Operations on the index itself are short, and are just done
+     * under the lock of the lock file's header. */
+    private interface Op<T> {
+	public T run() throws IOException;
+    }
+
+    private synchronized <T> T locked(Op<T> op) throws IOException {
+	FileLock lk = lockfile().lock(0, JHEAD, false);
+	try {
+	    sync();
+	    return(op.run());
+	} finally {
+	    lk.release();
+	}
+    }
+
+    private static void readfully(FileChannel fp, ByteBuffer buf, long pos) throws IOException {
+	while(buf.hasRemaining()) {
+	    int rv = fp.read(buf, pos + buf.position());
+	    if(rv < 0)
+		throw(new EOFException());
+	}
+	buf.flip();
+    }
+
+    private static void writefully(FileChannel fp, ByteBuffer buf, long pos) throws IOException {
+	while(buf.hasRemaining())
+	    fp.write(buf, pos + buf.position());
+    }
+
+    private Path journalp(long gen) {return(dir.resolve("journal-" + gen));}
+    private Path tablep(long gen) {return(dir.resolve("table-" + gen));}
+
+    private long curgen() throws IOException {
+	if(lockf.size() < 8)
+	    return(0);
+	ByteBuffer buf = ByteBuffer.allocate(8);
+	readfully(lockf, buf, 0);
+	return(buf.getLong());
+    }
+
+    private void setgen(long gen) throws IOException {
+	ByteBuffer buf = ByteBuffer.allocate(8);
+	buf.putLong(gen).flip();
+	writefully(lockf, buf, 0);
+	lockf.force(false);
+    }
+
+    private void sync() throws IOException {
+	long cur = curgen();
+	if(cur == 0) {
+	    create();
+	} else if(cur != gen) {
+	    open(cur);
+	}
+	long covered = table.getLong(16), size = journal.size();
+	if(size > covered)
+	    replay(covered);
+	else if(size < covered)
+	    rewrite(null, capacity);
+    }
+
+    /* Record encoding */
+    private static void putstr(DataOutputStream out, String str) throws IOException {
+	byte[] b = str.getBytes(Utils.utf8);
+	out.writeInt(b.length);
+	out.write(b);
+    }
+
+    private static String getstr(ByteBuffer buf) {
+	byte[] b = new byte[buf.getInt()];
+	buf.get(b);
+	return(new String(b, Utils.utf8));
+    }
+
+    private static byte[] encode(String key, Properties props) throws IOException {
+	ByteArrayOutputStream buf = new ByteArrayOutputStream();
+	DataOutputStream out = new DataOutputStream(buf);
+	putstr(out, key);
+	if(props == null) {
+	    out.writeInt(-1);
+	} else {
+	    out.writeInt(props.size());
+	    for(String nm : props.stringPropertyNames()) {
+		putstr(out, nm);
+		putstr(out, props.getProperty(nm));
+	    }
+	}
+	return(buf.toByteArray());
+    }
+
+    private static class Record {
+	final String key;
+	final Properties props;
+	final int size;
+
+	Record(String key, Properties props, int size) {
+	    this.key = key;
+	    this.props = props;
+	    this.size = size;
+	}
+    }
+
+    /* Returns null for anything that isn't a whole, intact record. */
+    private Record read(long pos) throws IOException {
+	long size = journal.size();
+	if(pos + 8 > size)
+	    return(null);
+	ByteBuffer head = ByteBuffer.allocate(8);
+	readfully(journal, head, pos);
+	int len = head.getInt(), crc = head.getInt();
+	if((len < 8) || (pos + 8 + len > size))
+	    return(null);
+	ByteBuffer data = ByteBuffer.allocate(len);
+	readfully(journal, data, pos + 8);
+	CRC32 check = new CRC32();
+	check.update(data.array(), 0, len);
+	if((int)check.getValue() != crc)
+	    return(null);
+	try {
+	    String key = getstr(data);
+	    int n = data.getInt();
+	    Properties props = null;
+	    if(n >= 0) {
+		props = new Properties();
+		for(int i = 0; i < n; i++) {
+		    String nm = getstr(data);
+		    props.setProperty(nm, getstr(data));
+		}
+	    }
+	    return(new Record(key, props, len + 8));
+	} catch(BufferUnderflowException | NegativeArraySizeException e) {
+	    return(null);
+	}
+    }
+
+    private long append(byte[] data) throws IOException {
+	CRC32 check = new CRC32();
+	check.update(data);
+	ByteBuffer buf = ByteBuffer.allocate(data.length + 8);
+	buf.putInt(data.length).putInt((int)check.getValue()).put(data).flip();
+	long pos = journal.size();
+	writefully(journal, buf, pos);
+	return(pos);
+    }
+
+    /* Table handling */
+    private int count() {return(table.getInt(32));}
+
+    /* Returns the slot holding the key, or the empty slot where it
+     * would go. */
+    private int find(String key) throws IOException {
+	long h = hash(key);
+	for(int i = (int)((h & 0x7fffffffffffffffL) % capacity);; i = (i + 1) % capacity) {
+	    long sh = table.getLong(THEAD + (i * SLOT));
+	    if(sh == 0)
+		return(i);
+	    if(sh == h) {
+		Record rec = read(table.getLong(THEAD + (i * SLOT) + 8));
+		if((rec != null) && rec.key.equals(key))
+		    return(i);
+	    }
+	}
+    }
+
+    /* Returns false if the table is too full to take a new key. */
+    private boolean index(String key, long pos, int size) throws IOException {
+	int slot = find(key);
+	int off = THEAD + (slot * SLOT);
+	long live = table.getLong(24);
+	if(table.getLong(off) == 0) {
+	    if((count() + 1) * 4 > capacity * 3)
+		return(false);
+	    table.putInt(32, count() + 1);
+	} else {
+	    Record old = read(table.getLong(off + 8));
+	    if(old != null)
+		live -= old.size;
+	}
+	table.putLong(off + 8, pos);
+	table.putLong(off, hash(key));
+	table.putLong(24, live + size);
+	return(true);
+    }
+
+    private void replay(long pos) throws IOException {
+	while(true) {
+	    Record rec = read(pos);
+	    if(rec == null)
+		break;
+	    if(!index(rec.key, pos, rec.size)) {
+		rewrite(null, capacity * 2);
+		return;
+	    }
+	    pos += rec.size;
+	}
+	/* Anything after that is from an interrupted write. */
+	if(journal.size() > pos)
+	    journal.truncate(pos);
+	table.putLong(16, pos);
+    }
+
+    private MappedByteBuffer maptable(long gen, int capacity) throws IOException {
+	try(FileChannel fp = FileChannel.open(tablep(gen), StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+	    MappedByteBuffer ret = fp.map(FileChannel.MapMode.READ_WRITE, 0, THEAD + ((long)capacity * SLOT));
+	    ret.put(tmagic).putLong(gen).putLong(JHEAD).putLong(0).putInt(0).putInt(capacity);
+	    return(ret);
+	}
+    }
+
+    private void open(long gen) throws IOException {
+	if(journal != null)
+	    journal.close();
+	journal = null;
+	table = null;
+	this.gen = gen;
+	journal = FileChannel.open(journalp(gen), StandardOpenOption.READ, StandardOpenOption.WRITE);
+	boolean ok = false;
+	if(Files.exists(tablep(gen))) {
+	    try(FileChannel fp = FileChannel.open(tablep(gen), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+		if(fp.size() >= THEAD) {
+		    MappedByteBuffer map = fp.map(FileChannel.MapMode.READ_WRITE, 0, fp.size());
+		    byte[] magic = new byte[tmagic.length];
+		    map.get(magic);
+		    int cap = map.getInt(36);
+		    if(Arrays.equals(magic, tmagic) && (map.getLong(8) == gen) && (cap > 0) && (fp.size() == THEAD + ((long)cap * SLOT))) {
+			table = map;
+			capacity = cap;
+			ok = true;
+		    }
+		}
+	    }
+	}
+	if(!ok)
+	    rewrite(null, 1024);
+	cleanup();
+    }
+
+    /* Files of older generations may still be in use by other
+     * processes, which on some systems keeps them from being
+     * deleted, so just try again later. */
+    private void cleanup() {
+	try(DirectoryStream<Path> ls = Files.newDirectoryStream(dir)) {
+	    for(Path p : ls) {
+		String nm = p.getFileName().toString();
+		if((nm.startsWith("journal-") || nm.startsWith("table-")) && !p.equals(journalp(gen)) && !p.equals(tablep(gen))) {
+		    try {
+			Files.deleteIfExists(p);
+		    } catch(IOException e) {
+		    }
+		}
+	    }
+	} catch(IOException e) {
+	}
+    }
+
+    private void newjournal(long gen) throws IOException {
+	try(FileChannel fp = FileChannel.open(journalp(gen), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+	    ByteBuffer buf = ByteBuffer.allocate(JHEAD);
+	    buf.put(jmagic).putLong(gen).flip();
+	    writefully(fp, buf, 0);
+	}
+    }
+
+    /*
+     * Starts a new generation, from the records at the given offsets
+     * or, if null, from everything in the current journal. Tables
+     * are never rebuilt in place, since other processes may have
+     * them mapped.
+     */
+    private void rewrite(List<Long> recs, int ncap) throws IOException {
+	long ngen = Math.max(gen, curgen()) + 1;
+	newjournal(ngen);
+	try(FileChannel out = FileChannel.open(journalp(ngen), StandardOpenOption.WRITE)) {
+	    long pos = JHEAD;
+	    if(recs == null) {
+		for(long done = 0, len = journal.size() - JHEAD; done < len;)
+		    done += journal.transferTo(JHEAD + done, len - done, out.position(JHEAD + done));
+	    } else {
+		for(long rpos : recs) {
+		    Record rec = read(rpos);
+		    if(rec == null)
+			continue;
+		    for(long done = 0; done < rec.size;)
+			done += journal.transferTo(rpos + done, rec.size - done, out.position(pos + done));
+		    pos += rec.size;
+		}
+	    }
+	    out.force(true);
+	}
+	journal.close();
+	journal = FileChannel.open(journalp(ngen), StandardOpenOption.READ, StandardOpenOption.WRITE);
+	gen = ngen;
+	capacity = ncap;
+	table = maptable(ngen, ncap);
+	replay(JHEAD);
+	/* Replaying may itself have had to move on to a larger table. */
+	if(gen == ngen) {
+	    setgen(ngen);
+	    cleanup();
+	}
+    }
+
+    /* Drops superseded and removed records. */
+    private void maybecompact() throws IOException {
+	int count = count();
+	long live = table.getLong(24), size = journal.size();
+	if((count * 2 > capacity) || (size > (live * 2) + (1 << 20))) {
+	    List<Long> recs = new ArrayList<>();
+	    for(int i = 0; i < capacity; i++) {
+		int off = THEAD + (i * SLOT);
+		if(table.getLong(off) == 0)
+		    continue;
+		Record rec = read(table.getLong(off + 8));
+		if((rec != null) && (rec.props != null))
+		    recs.add(table.getLong(off + 8));
+	    }
+	    Collections.sort(recs);
+	    int ncap = 1024;
+	    while(ncap < recs.size() * 4)
+		ncap *= 2;
+	    rewrite(recs, ncap);
+	}
+    }
+
+    private void create() throws IOException {
+	long ngen = gen + 1;
+	newjournal(ngen);
+	journal = FileChannel.open(journalp(ngen), StandardOpenOption.READ, StandardOpenOption.WRITE);
+	gen = ngen;
+	capacity = 1024;
+	table = maptable(ngen, capacity);
+	migrate();
+	if(gen == ngen)
+	    setgen(ngen);
+    }
+
+    /* Takes over the info files that each cached file used to have
+     * next to it. This is the only time the cache tree is walked.
+     * Since the files themselves have moved into the blob store, an
+     * older launcher could not use the cache anyway, so the info
+     * files are not kept for it. */
+    private void migrate() throws IOException {
+	Path root = dir.getParent();
+	List<Path> found = new ArrayList<>();
+	Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+		public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) {
+		    if(!d.equals(root) && d.getFileName().toString().startsWith("."))
+			return(FileVisitResult.SKIP_SUBTREE);
+		    return(FileVisitResult.CONTINUE);
+		}
+
+		public FileVisitResult visitFile(Path f, BasicFileAttributes attrs) {
+		    String nm = f.getFileName().toString();
+		    if(nm.startsWith(".") && nm.endsWith(".info"))
+			found.add(f);
+		    return(FileVisitResult.CONTINUE);
+		}
+
+		public FileVisitResult visitFileFailed(Path f, IOException exc) {
+		    return(FileVisitResult.CONTINUE);
+		}
+	    });
+	for(Path f : found) {
+	    Properties props = new Properties();
+	    try(Reader in = Files.newBufferedReader(f, Utils.utf8)) {
+		props.load(in);
+	    } catch(IOException | IllegalArgumentException e) {
+		continue;
+	    }
+	    String key = props.getProperty("source");
+	    if(key != null)
+		append(encode(key, props));
+	}
+	replay(table.getLong(16));
+	for(Path f : found) {
+	    try {
+		Files.deleteIfExists(f);
+	    } catch(IOException e) {
+	    }
+	}
+    }
+
+    /* Public interface */
+    public Properties get(URI uri) throws IOException {
+	String key = uri.toString();
+	return(locked(() -> {
+		    int slot = find(key);
+		    if(table.getLong(THEAD + (slot * SLOT)) == 0)
+			return(new Properties());
+		    Record rec = read(table.getLong(THEAD + (slot * SLOT) + 8));
+		    return(((rec == null) || (rec.props == null)) ? new Properties() : rec.props);
+		}));
+    }
+
+    private void put(String key, Properties props) throws IOException {
+	locked(() -> {
+		append(encode(key, props));
+		replay(table.getLong(16));
+		maybecompact();
+		return(null);
+	    });
+    }
+
+    public void put(URI uri, Properties props) throws IOException {
+	put(uri.toString(), props);
+    }
+
+    public void remove(URI uri) throws IOException {
+	put(uri.toString(), null);
+    }
+
+    public Map<URI, Properties> entries() throws IOException {
+	return(locked(() -> {
+		    Map<URI, Properties> ret = new HashMap<>();
+		    for(int i = 0; i < capacity; i++) {
+			int off = THEAD + (i * SLOT);
+			if(table.getLong(off) == 0)
+			    continue;
+			Record rec = read(table.getLong(off + 8));
+			if((rec == null) || (rec.props == null))
+			    continue;
+			try {
+			    ret.put(new URI(rec.key), rec.props);
+			} catch(URISyntaxException e) {
+			}
+		    }
+		    return(ret);
+		}));
+    }
+}
@@ -38,7 +38,7 @@ public class ChainLauncher implements Launcher {
 
     public void launch() throws IOException {
 	Config chained = new Config();
-	try(InputStream src = Files.newInputStream(chain.update())) {
+	try(InputStream src = Files.newInputStream(Workers.get(chain.fetch()))) {
 	    chained.read(new InputStreamReader(src, Utils.utf8), Config.Environment.from(chain));
 	}
 	Driver.run(chained);
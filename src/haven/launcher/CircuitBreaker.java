@@ -0,0 +1,86 @@
+/*
+ *  This file is part of the Haven Java Launcher.
+ *  Copyright (C) 2019 Fredrik Tolf <fredrik@dolda2000.com>, and
+ *                     Björn Johannessen <johannessen.bjorn@gmail.com>
+ *
+ *  Redistribution and/or modification of this file is subject to the
+ *  terms of the GNU Lesser General Public License, version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  Other parts of this source tree adhere to other copying
+ *  rights. Please see the file `COPYING' in the root directory of the
+ *  source tree for details.
+ *
+ *  A copy the GNU Lesser General Public License is distributed along
+ *  with the source tree of which this file is a part in the file
+ *  `doc/LPGL-3'. If it is missing for any reason, please see the Free
+ *  Software Foundation's website at <http://www.fsf.org/>, or write
+ *  to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA
+ */
+
+package haven.launcher;
+
+import java.util.*;
+import java.net.*;
+
+/*
+ * Keeps track of hosts that seem to be down, so that they aren't
+ * waited on over and over. After a number of consecutive failures, a
+ * host is left alone for a while, after which a single request at a
+ * time is let through to see whether it is back.
+ */
+public class CircuitBreaker {
+    private static final int THRESHOLD = 3;
+    private static final long OPEN = 30000;
+    private final Map<String, State> hosts = new HashMap<>();
+
+    private static class State {
+	int failures = 0;
+	long opened = 0;
+	boolean trial = false;
+    }
+
+    private static String key(URI uri) {
+	return(uri.getAuthority());
+    }
+
+    /* Whether a host may be asked at all right now. */
+    public synchronized boolean allow(URI uri) {
+	State s = hosts.get(key(uri));
+	if((s == null) || (s.failures < THRESHOLD))
+	    return(true);
+	if(s.trial || (System.currentTimeMillis() - s.opened < OPEN))
+	    return(false);
+	s.trial = true;
+	return(true);
+    }
+
+    /* Lets another trial through, if the one let through neither
+     * succeeded nor failed. */
+    public synchronized void settle(URI uri) {
+	State s = hosts.get(key(uri));
+	if(s != null)
+	    s.trial = false;
+    }
+
+    public synchronized void succeeded(URI uri) {
+	hosts.remove(key(uri));
+    }
+
+    /* Returns whether the host is now considered down. */
+    public synchronized boolean failed(URI uri) {
+	State s = hosts.computeIfAbsent(key(uri), k -> new State());
+	s.trial = false;
+	if(++s.failures >= THRESHOLD) {
+	    s.opened = System.currentTimeMillis();
+	    return(true);
+	}
+	return(false);
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ *  This file is part of the Haven Java Launcher.
+ *  Copyright (C) 2019 Fredrik Tolf <fredrik@dolda2000.com>, and
+ *                     Björn Johannessen <johannessen.bjorn@gmail.com>
+ *
+ *  Redistribution and/or modification of this file is subject to the
+ *  terms of the GNU Lesser General Public License, version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  Other parts of this source tree adhere to other copying
+ *  rights. Please see the file `COPYING' in the root directory of the
+ *  source tree for details.
+ *
+ *  A copy the GNU Lesser General Public License is distributed along
+ *  with the source tree of which this file is a part in the file
+ *  `doc/LPGL-3'. If it is missing for any reason, please see the Free
+ *  Software Foundation's website at <http://www.fsf.org/>, or write
+ *  to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA
+ */
+
+package haven.launcher;
+
+import java.util.*;
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+
+/*
+ * Keeps the cache within a size budget, given in megabytes by
+ * haven.launcher.cache-limit, by evicting the least recently used
+ * entries. Nothing used by the current launch is ever evicted, and
+ * neither is anything stored very recently, which some other
+ * launcher may just be about to use. Once a day, the cache tree is
+ * also swept for files that nothing refers to anymore, such as
+ * abandoned partial downloads and old native library directories.
+ */
+public class Collector {
+    private static final long GRACE = 3600000, STALE = 86400000, SWEEP = 86400000;
+    public final Cache cache;
+    public final long limit;
+
+    public Collector(Cache cache) {
+	this.cache = cache;
+	long mb;
+	try {
+	    mb = Long.parseLong(System.getProperty("haven.launcher.cache-limit", "1024"));
+	} catch(NumberFormatException e) {
+	    mb = 1024;
+	}
+	this.limit = mb << 20;
+    }
+
+    private static long size(Path p) {
+	try {
+	    return(Files.size(p));
+	} catch(IOException e) {
+	    return(0);
+	}
+    }
+
+    private static boolean recent(Path p, long age) {
+	try {
+	    return(System.currentTimeMillis() - Files.getLastModifiedTime(p).toMillis() < age);
+	} catch(IOException e) {
+	    return(false);
+	}
+    }
+
+    private static boolean delete(Path p) {
+	try {
+	    if(Files.isDirectory(p)) {
+		try(DirectoryStream<Path> ls = Files.newDirectoryStream(p)) {
+		    for(Path sub : ls)
+			delete(sub);
+		}
+	    }
+	    Files.deleteIfExists(p);
+	    return(true);
+	} catch(IOException e) {
+	    /* Probably in use on Windows. */
+	    return(false);
+	}
+    }
+
+    private static class Entry {
+	final URI uri;
+	final Path file;
+	final long used;
+
+	Entry(URI uri, Path file, long used) {
+	    this.uri = uri;
+	    this.file = file;
+	    this.used = used;
+	}
+    }
+
+    public void run(Set<URI> keep) throws IOException {
+	try(FileLock lk = cache.index().lockcollector()) {
+	    if(lk == null)
+		return;
+	    Map<Path, Integer> refs = new HashMap<>();
+	    List<Entry> entries = new ArrayList<>();
+	    for(Map.Entry<URI, Properties> ent : cache.index().entries().entrySet()) {
+		Path file = cache.stored(ent.getKey(), ent.getValue());
+		entries.add(new Entry(ent.getKey(), file, Cache.lastuse(ent.getValue())));
+		refs.merge(file, 1, Integer::sum);
+	    }
+	    Path stamp = cache.local(".index", "collected");
+	    if(!recent(stamp, SWEEP)) {
+		sweep(entries, refs.keySet());
+		Files.write(stamp, new byte[0]);
+	    }
+	    long total = 0;
+	    for(Path file : refs.keySet())
+		total += size(file);
+	    if(total <= limit)
+		return;
+	    entries.sort((a, b) -> Long.compare(a.used, b.used));
+	    for(Entry ent : entries) {
+		if(total <= limit)
+		    break;
+		if(keep.contains(ent.uri) || (System.currentTimeMillis() - ent.used < GRACE))
+		    continue;
+		synchronized(cache.index().monitor(ent.uri)) {
+		    FileLock elk = cache.index().lock(ent.uri);
+		    try {
+			/* Check that it hasn't changed since it was listed. */
+			Properties props = cache.index().get(ent.uri);
+			if(!props.containsKey("source") || !cache.stored(ent.uri, props).equals(ent.file))
+			    continue;
+			int n = refs.get(ent.file);
+			if(n == 1) {
+			    long sz = size(ent.file);
+			    if(recent(ent.file, GRACE) || !delete(ent.file))
+				continue;
+			    delete(Cache.certmemo(ent.file));
+			    total -= sz;
+			}
+			refs.put(ent.file, n - 1);
+			cache.index().remove(ent.uri);
+			for(String var : new String[] {"lib", "new", "part"})
+			    delete(cache.metafile(ent.uri, var));
+		    } finally {
+			elk.release();
+		    }
+		}
+	    }
+	}
+    }
+
+    /* Removes whatever is in the cache tree that nothing refers to. */
+    private void sweep(List<Entry> entries, Set<Path> files) throws IOException {
+	Set<Path> meta = new HashSet<>();
+	for(Entry ent : entries) {
+	    for(String var : new String[] {"lib", "new", "part"})
+		meta.add(cache.metafile(ent.uri, var));
+	}
+	Path root = cache.local();
+	List<Path> garbage = new ArrayList<>();
+	Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+		public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) {
+		    if(d.equals(root))
+			return(FileVisitResult.CONTINUE);
+		    String nm = d.getFileName().toString();
+		    if(d.getParent().equals(root) && nm.startsWith(".")) {
+			/* The index and prefetch records look after themselves. */
+			if(nm.equals(".blobs"))
+			    return(FileVisitResult.CONTINUE);
+			return(FileVisitResult.SKIP_SUBTREE);
+		    }
+		    if(nm.endsWith(".lib") && nm.startsWith(".")) {
+			if(!meta.contains(d))
+			    garbage.add(d);
+			return(FileVisitResult.SKIP_SUBTREE);
+		    }
+		    return(FileVisitResult.CONTINUE);
+		}
+
+		public FileVisitResult visitFile(Path f, BasicFileAttributes attrs) {
+		    String nm = f.getFileName().toString();
+		    if(nm.startsWith(".") && (nm.endsWith(".new") || nm.endsWith(".part"))) {
+			/* Partial downloads are kept a while for resuming. */
+			if(System.currentTimeMillis() - attrs.lastModifiedTime().toMillis() > STALE)
+			    garbage.add(f);
+		    } else if(nm.startsWith(".")) {
+			/* Left by older launchers; leave them be. */
+		    } else if(nm.endsWith(Cache.MEMO) && files.contains(f.resolveSibling(nm.substring(0, nm.length() - Cache.MEMO.length())))) {
+			/* Verification memo of a stored jar. */
+		    } else if(!files.contains(f)) {
+			if(System.currentTimeMillis() - attrs.lastModifiedTime().toMillis() > GRACE)
+			    garbage.add(f);
+		    }
+		    return(FileVisitResult.CONTINUE);
+		}
+
+		public FileVisitResult visitFileFailed(Path f, IOException exc) {
+		    return(FileVisitResult.CONTINUE);
+		}
+	    });
+	for(Path p : garbage)
+	    delete(p);
+    }
+}
@@ -51,14 +51,22 @@ public class Config {
 	public Collection<Validator> val = Collections.emptyList();
 	public Map<String, String> par = Collections.emptyMap();
 	public URI rel = opaque, src = null;
+	public long checkint = -1;
+	public Collection<String> packed = Collections.emptyList();
 
 	public Environment val(Collection<Validator> val) {this.val = val; return(this);}
 	public Environment par(Map<String, String> par) {this.par = par; return(this);}
 	public Environment rel(URI rel) {this.rel = rel; return(this);}
 	public Environment src(URI src) {this.src = src; return(this);}
+	public Environment checkint(long checkint) {this.checkint = checkint; return(this);}
+	public Environment packed(Collection<String> packed) {this.packed = packed; return(this);}
 
 	public static Environment from(Resource res) {
-	    return(new Environment().val(res.val).rel(res.uri).src(res.uri));
+	    return(new Environment().val(res.val).rel(res.uri).src(res.uri).checkint(res.checkint).packed(res.packed));
+	}
+
+	public Resource resource(URI uri) {
+	    return(new Resource(uri, val).referrer(src).checkint(checkint).packed(packed));
 	}
     }
 
@@ -310,11 +318,76 @@ public class Config {
 		env.val = nval;
 		break;
 	    }
+	    case "manifest": {
+		if(words.length < 2)
+		    throw(new RuntimeException("usage: manifest URL"));
+		URI uri;
+		try {
+		    uri = env.rel.resolve(new URI(expand(words[1], env)));
+		} catch(URISyntaxException e) {
+		    throw(new RuntimeException("usage: manifest URL", e));
+		}
+		ReleaseManifest manifest;
+		try {
+		    manifest = ReleaseManifest.load(env.resource(uri).priority(Resource.CONFIG));
+		} catch(IOException e) {
+		    throw(new RuntimeException("could not load release manifest: " + uri, e));
+		}
+		Collection<Validator> nval = new ArrayList<>();
+		nval.add(new Validator.ManifestValidator(manifest));
+		nval.addAll(env.val);
+		env.val = nval;
+		break;
+	    }
+	    case "mirror": {
+		if(words.length < 3)
+		    throw(new RuntimeException("usage: mirror PREFIX URL..."));
+		try {
+		    String prefix = env.rel.resolve(new URI(expand(words[1], env))).toString();
+		    Collection<String> mirrors = new ArrayList<>();
+		    for(int i = 2; i < words.length; i++)
+			mirrors.add(env.rel.resolve(new URI(expand(words[i], env))).toString());
+		    Cache.get().mirrors().add(prefix, mirrors);
+		} catch(URISyntaxException e) {
+		    throw(new RuntimeException("usage: mirror PREFIX URL...", e));
+		}
+		break;
+	    }
+	    case "check-interval": {
+		if(words.length < 2)
+		    throw(new RuntimeException("usage: check-interval SECONDS|default"));
+		String iv = expand(words[1], env);
+		if(iv.equals("default")) {
+		    env.checkint(-1);
+		} else {
+		    try {
+			env.checkint(Long.parseLong(iv));
+		    } catch(NumberFormatException e) {
+			throw(new RuntimeException("usage: check-interval SECONDS|default", e));
+		    }
+		}
+		break;
+	    }
+	    case "packed": {
+		if(words.length < 2)
+		    throw(new RuntimeException("usage: packed SUFFIX...|none"));
+		Collection<String> npacked = new ArrayList<>();
+		for(int i = 1; i < words.length; i++) {
+		    String suffix = expand(words[i], env);
+		    if(!suffix.equals("none"))
+			npacked.add(suffix);
+		}
+		env.packed(npacked);
+		break;
+	    }
 	    case "include": {
 		if(words.length < 2)
 		    throw(new RuntimeException("usage: include URL"));
 		try {
-		    include.add(new Resource(env.rel.resolve(new URI(expand(words[1], env))), env.val).referrer(env.src));
+		    Resource res = env.resource(env.rel.resolve(new URI(expand(words[1], env)))).priority(Resource.CONFIG);
+		    include.add(res);
+		    if(!included.contains(res.uri))
+			res.fetch();
 		} catch(URISyntaxException e) {
 		    throw(new RuntimeException("usage: include URL", e));
 		}
@@ -331,7 +404,7 @@ public class Config {
 		}
 		if(!exts.contains(uri)) {
 		    try {
-			for(Extension ext : Extension.load(new Resource(uri, env.val).referrer(env.src)))
+			for(Extension ext : Extension.load(env.resource(uri).priority(Resource.CONFIG)))
 			    ext.init(this);
 		    } catch(IOException e) {
 			throw(new RuntimeException("could not load extension: " + String.valueOf(uri), e));
@@ -356,7 +429,9 @@ public class Config {
 		if(words.length < 2)
 		    throw(new RuntimeException("usage: chain URL"));
 		try {
-		    launcher = new ChainLauncher(new Resource(env.rel.resolve(new URI(expand(words[1], env))), env.val).referrer(env.src));
+		    Resource res = env.resource(env.rel.resolve(new URI(expand(words[1], env)))).priority(Resource.CONFIG);
+		    launcher = new ChainLauncher(res);
+		    res.fetch();
 		} catch(URISyntaxException e) {
 		    throw(new RuntimeException("usage: chain URL", e));
 		}
@@ -30,6 +30,7 @@ import java.io.*;
 import java.nio.file.*;
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 public class Driver {
     public static void execute(Config cfg) {
@@ -45,12 +46,20 @@ public class Driver {
 
     public static void run(Config cfg) {
 	try {
+	    Map<URI, Future<Path>> fetching = new HashMap<>();
 	    while(!cfg.include.isEmpty()) {
+		/* Fetch everything currently known to be included at
+		 * once, but still evaluate it strictly in queue order,
+		 * so that the result is the same as when done serially. */
+		for(Resource res : cfg.include) {
+		    if(!cfg.included.contains(res.uri) && !fetching.containsKey(res.uri))
+			fetching.put(res.uri, res.fetch());
+		}
 		Resource res = Utils.pop(cfg.include);
 		if(cfg.included.contains(res.uri))
 		    continue;
 		cfg.included.add(res.uri);
-		Path path = res.update();
+		Path path = Workers.get(fetching.remove(res.uri));
 		try(InputStream src = Files.newInputStream(path)) {
 		    cfg.read(new InputStreamReader(src, Utils.utf8), Config.Environment.from(res));
 		}
@@ -89,6 +98,10 @@ public class Driver {
 		    break;
 		}
 	    }
+	    /* Let every connection that may be made to a host at once
+	     * be kept alive. */
+	    if(System.getProperty("http.maxConnections") == null)
+		System.setProperty("http.maxConnections", Integer.toString(Throttle.hostmax()));
 	    if(!quiet) {
 		status: {
 		    try {
@@ -103,6 +116,14 @@ public class Driver {
 		    }
 		}
 	    }
+	    if(opt.rest.length > 0) {
+		if(opt.rest[0].indexOf("://") < 0)
+		    Prefetch.start(Utils.path(opt.rest[0]).toAbsolutePath().toUri().toString());
+		else
+		    Prefetch.start(opt.rest[0]);
+	    } else {
+		Prefetch.start("bootstrap:" + Utils.getLocation(Driver.class));
+	    }
 	    Config cfg = new Config();
 	    for(String extn : exts) {
 		try {
@@ -132,7 +153,7 @@ public class Driver {
 			    System.err.printf("launcher: invalid url: %s\n", opt.rest[0]);
 			    System.exit(1); return;
 			}
-			Resource res = new Resource(uri, Collections.emptyList());
+			Resource res = new Resource(uri, Collections.emptyList()).priority(Resource.CONFIG);
 			try(InputStream src = Files.newInputStream(res.update())) {
 			    cfg.read(new InputStreamReader(src, Utils.utf8), Config.Environment.from(res));
 			}
@@ -159,6 +180,9 @@ public class Driver {
 		}
 	    }
 	    run(cfg);
+	    Prefetch.commit();
+	    Cache.get().mirrors().commit();
+	    Cache.get().collect();
 	} catch(Throwable t) {
 	    Status.current().error(t);
 	}
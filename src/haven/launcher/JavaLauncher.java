@@ -28,6 +28,7 @@ package haven.launcher;
 
 import java.util.*;
 import java.util.regex.*;
+import java.util.concurrent.*;
 import java.io.*;
 import java.nio.file.*;
 import java.net.*;
@@ -87,8 +88,32 @@ public class JavaLauncher implements Launcher {
 	List<String> args = new ArrayList<>();
 	args.add(findjvm().toFile().toString());
 	Collection<Path> classpath = new ArrayList<>();
-	for(Resource res : this.classpath) {
-	    classpath.add(res.update());
+	Collection<String> libdirs = new ArrayList<>();
+	Path execjar = null;
+	try(Status st = Status.current()) {
+	    st.message("Updating files...");
+	    /* Resolve everything at once, and only then assemble the
+	     * command line in its proper order. */
+	    Collection<Future<Path>> cpfetch = new ArrayList<>();
+	    for(Resource res : this.classpath)
+		cpfetch.add(res.fetch());
+	    Collection<Future<Path>> libfetch = new ArrayList<>();
+	    for(NativeLib lib : libraries) {
+		if(lib.use())
+		    libfetch.add(Workers.submit(lib::extract));
+	    }
+	    Collection<Future<Path>> execfetch = new ArrayList<>();
+	    if((mainclass == null) && (this.execjar != null))
+		execfetch.add(this.execjar.fetch());
+	    List<Future<Path>> all = new ArrayList<>();
+	    all.addAll(cpfetch); all.addAll(libfetch); all.addAll(execfetch);
+	    Iterator<Path> res = Workers.join(all).iterator();
+	    for(int i = 0; i < cpfetch.size(); i++)
+		classpath.add(res.next());
+	    for(int i = 0; i < libfetch.size(); i++)
+		libdirs.add(res.next().toFile().toString());
+	    if(!execfetch.isEmpty())
+		execjar = res.next();
 	}
 	if(heapsize > 0) {
 	    if (!Utils.is64BitVM()) { // Limit heap on not x64-bit runtimes
@@ -105,26 +130,19 @@ public class JavaLauncher implements Launcher {
 	    args.add(String.join(File.pathSeparator, (Iterable<String>)classpath.stream().map(Path::toFile).map(File::toString)::iterator));
 	}
 
-	{
-	    Collection<String> libdirs = new ArrayList<>();
-	    for(NativeLib lib : libraries) {
-		if(lib.use())
-		    libdirs.add(lib.extract().toFile().toString());
-	    }
-	    if(libdirs.size() > 0) {
-		String dirs = String.join(File.pathSeparator, libdirs);
-		String cur = System.getProperty("java.library.path");
-		if((cur != null) && (cur.length() > 0))
-		    dirs = dirs + File.pathSeparator + cur;
-		args.add(String.format("-Djava.library.path=%s", dirs));
-	    }
+	if(libdirs.size() > 0) {
+	    String dirs = String.join(File.pathSeparator, libdirs);
+	    String cur = System.getProperty("java.library.path");
+	    if((cur != null) && (cur.length() > 0))
+		dirs = dirs + File.pathSeparator + cur;
+	    args.add(String.format("-Djava.library.path=%s", dirs));
 	}
 
 	if(mainclass != null) {
 	    args.add(mainclass);
 	} else if(execjar != null) {
 	    args.add("-jar");
-	    args.add(execjar.update().toString());
+	    args.add(execjar.toString());
 	} else {
 	    throw(new RuntimeException("neither main-class nor exec-jar specified for Java launcher"));
 	}
@@ -150,7 +168,8 @@ public class JavaLauncher implements Launcher {
 	    if(words.length < 2)
 		throw(new RuntimeException("usage: exec-jar URL"));
 	    try {
-		execjar = new Resource(env.rel.resolve(new URI(expand(words[1], env))), env.val).referrer(env.src);
+		execjar = env.resource(env.rel.resolve(new URI(expand(words[1], env)))).priority(Resource.CODE);
+		execjar.fetch();
 	    } catch(URISyntaxException e) {
 		throw(new RuntimeException("usage: exec-jar URL", e));
 	    }
@@ -160,7 +179,9 @@ public class JavaLauncher implements Launcher {
 	    if(words.length < 2)
 		throw(new RuntimeException("usage: classpath URL"));
 	    try {
-		classpath.add(new Resource(env.rel.resolve(new URI(expand(words[1], env))), env.val).referrer(env.src));
+		Resource res = env.resource(env.rel.resolve(new URI(expand(words[1], env)))).priority(Resource.CODE);
+		classpath.add(res);
+		res.fetch();
 	    } catch(URISyntaxException e) {
 		throw(new RuntimeException("usage: classpath URL", e));
 	    }
@@ -208,11 +229,14 @@ public class JavaLauncher implements Launcher {
 	    try {
 		Pattern os = Pattern.compile(words[1], Pattern.CASE_INSENSITIVE);
 		Pattern arch = Pattern.compile(words[2], Pattern.CASE_INSENSITIVE);
-		Resource lib = new Resource(env.rel.resolve(new URI(expand(words[3], env))), env.val).referrer(env.src);
+		Resource lib = env.resource(env.rel.resolve(new URI(expand(words[3], env)))).priority(Resource.CODE);
 		String subdir = "";
 		if(words.length > 4)
 		    subdir = expand(words[4], env);
-		libraries.add(new NativeLib(os, arch, lib, subdir));
+		NativeLib nl = new NativeLib(os, arch, lib, subdir);
+		libraries.add(nl);
+		if(nl.use())
+		    lib.fetch();
 	    } catch(PatternSyntaxException | URISyntaxException e) {
 		throw(new RuntimeException("usage: native-lib OS ARCH URL [SUB-DIR]", e));
 	    }
@@ -0,0 +1,304 @@
+/*
+ *  This file is part of the Haven Java Launcher.
+ *  Copyright (C) 2019 Fredrik Tolf <fredrik@dolda2000.com>, and
+ *                     Björn Johannessen <johannessen.bjorn@gmail.com>
+ *
+ *  Redistribution and/or modification of this file is subject to the
+ *  terms of the GNU Lesser General Public License, version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  Other parts of this source tree adhere to other copying
+ *  rights. Please see the file `COPYING' in the root directory of the
+ *  source tree for details.
+ *
+ *  A copy the GNU Lesser General Public License is distributed along
+ *  with the source tree of which this file is a part in the file
+ *  `doc/LPGL-3'. If it is missing for any reason, please see the Free
+ *  Software Foundation's website at <http://www.fsf.org/>, or write
+ *  to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA
+ */
+
+package haven.launcher;
+
+import java.util.*;
+import java.io.*;
+import java.net.*;
+import java.nio.file.*;
+
+/*
+ * Alternative places to fetch files from. A mirror set says that
+ * everything under a URI prefix can equally well be fetched with the
+ * prefix replaced by any of a number of others. Files are still
+ * cached, and validated, under their original URI, whichever mirror
+ * they come from.
+ *
+ * The latency and throughput of every source is kept track of, and
+ * remembered across runs, so that the fastest one is tried first.
+ * Sources that fail or stall are put last for a while.
+ */
+public class Mirrors {
+    private static final long PENALTY = 600000, NOMINAL = 1 << 20;
+    private final Path record;
+    private final Map<String, List<String>> sets = new HashMap<>();
+    private final Map<String, Stats> stats = new HashMap<>();
+    private boolean loaded = false, dirty = false;
+
+    private static class Stats {
+	double latency = -1, rate = -1;
+	long failed = 0;
+
+	double estimate() {
+	    /* Those not yet tried are tried first, to find out. */
+	    if((latency < 0) || (rate <= 0))
+		return(0);
+	    return(latency + (NOMINAL / rate));
+	}
+    }
+
+    public Mirrors(Path record) {
+	this.record = record;
+    }
+
+    private void load() {
+	if(loaded)
+	    return;
+	loaded = true;
+	if(!Files.exists(record))
+	    return;
+	Properties props = new Properties();
+	try(InputStream fp = Files.newInputStream(record)) {
+	    props.load(fp);
+	} catch(IOException e) {
+	    return;
+	}
+	for(String base : props.stringPropertyNames()) {
+	    String[] words = props.getProperty(base).split(" ");
+	    try {
+		Stats s = new Stats();
+		s.latency = Double.parseDouble(words[0]);
+		s.rate = Double.parseDouble(words[1]);
+		stats.put(base, s);
+	    } catch(NumberFormatException | ArrayIndexOutOfBoundsException e) {
+	    }
+	}
+    }
+
+    public synchronized void commit() {
+	if(!dirty)
+	    return;
+	Properties props = new Properties();
+	for(Map.Entry<String, Stats> ent : stats.entrySet()) {
+	    if(ent.getValue().latency >= 0)
+		props.setProperty(ent.getKey(), ent.getValue().latency + " " + ent.getValue().rate);
+	}
+	try {
+	    Files.createDirectories(record.getParent());
+	    Path newp = record.resolveSibling(record.getFileName() + ".new");
+	    try(OutputStream fp = Files.newOutputStream(newp)) {
+		props.store(fp, null);
+	    }
+	    Files.move(newp, record, StandardCopyOption.REPLACE_EXISTING);
+	    dirty = false;
+	} catch(IOException e) {
+	}
+    }
+
+    /* Prefixes are directories, so that one never matches just
+     * part of a name. */
+    private static String dir(String prefix) {
+	return(prefix.endsWith("/") ? prefix : (prefix + "/"));
+    }
+
+    public synchronized void add(String prefix, Collection<String> mirrors) {
+	String key = dir(prefix);
+	List<String> set = sets.computeIfAbsent(key, k -> new ArrayList<>(Collections.singletonList(key)));
+	for(String base : mirrors) {
+	    base = dir(base);
+	    if(!set.contains(base))
+		set.add(base);
+	}
+    }
+
+    private String prefix(String uri) {
+	String ret = null;
+	for(String prefix : sets.keySet()) {
+	    if(uri.startsWith(prefix) && ((ret == null) || (prefix.length() > ret.length())))
+		ret = prefix;
+	}
+	return(ret);
+    }
+
+    private String base(URI source) {
+	String s = source.toString(), ret = null;
+	for(List<String> set : sets.values()) {
+	    for(String base : set) {
+		if(s.startsWith(base) && ((ret == null) || (base.length() > ret.length())))
+		    ret = base;
+	    }
+	}
+	return(ret);
+    }
+
+    private Stats stats(String base) {
+	load();
+	return(stats.computeIfAbsent(base, k -> new Stats()));
+    }
+
+    /* Where a file may be fetched from, most promising first. */
+    public synchronized List<URI> sources(URI uri) {
+	String prefix = prefix(uri.toString());
+	if(prefix == null)
+	    return(Collections.singletonList(uri));
+	String rest = uri.toString().substring(prefix.length());
+	List<String> order = new ArrayList<>(sets.get(prefix));
+	long now = System.currentTimeMillis();
+	/* The sort is stable, so untried ones keep their given order. */
+	order.sort((a, b) -> {
+		Stats x = stats(a), y = stats(b);
+		boolean xf = (now - x.failed) < PENALTY, yf = (now - y.failed) < PENALTY;
+		if(xf != yf)
+		    return(xf ? 1 : -1);
+		return(Double.compare(x.estimate(), y.estimate()));
+	    });
+	List<URI> ret = new ArrayList<>();
+	for(String base : order) {
+	    try {
+		ret.add(new URI(base + rest));
+	    } catch(URISyntaxException e) {
+	    }
+	}
+	return(ret);
+    }
+
+    /* How long to wait for a source to respond before moving on to
+     * the next one, given how fast it has been before. */
+    public synchronized int timeout(URI source, int def) {
+	String base = base(source);
+	if(base == null)
+	    return(def);
+	Stats s = stats(base);
+	if(s.latency < 0)
+	    return(def);
+	return((int)Math.max(Math.min(s.latency * 4000, def), 1000));
+    }
+
+    public synchronized void responded(URI source, long nanos) {
+	String base = base(source);
+	if(base == null)
+	    return;
+	Stats s = stats(base);
+	double lat = nanos / 1e9;
+	s.latency = (s.latency < 0) ? lat : ((s.latency * 3) + lat) / 4;
+	dirty = true;
+    }
+
+    public synchronized void transferred(URI source, long bytes, long nanos) {
+	String base = base(source);
+	if((base == null) || (bytes < (64 << 10)) || (nanos <= 0))
+	    return;
+	Stats s = stats(base);
+	double rate = (bytes * 1e9) / nanos;
+	s.rate = (s.rate < 0) ? rate : ((s.rate * 3) + rate) / 4;
+	dirty = true;
+    }
+
+    public synchronized void failed(URI source) {
+	String base = base(source);
+	if(base == null)
+	    return;
+	stats(base).failed = System.currentTimeMillis();
+    }
+
+    /*
+     * Watches a transfer from a source, so that one that falls below
+     * haven.launcher.speed-floor bytes per second for long enough is
+     * abandoned, for it to be resumed by range from another source,
+     * as long as that one has the same file. Only time spent waiting
+     * for the source counts, not time that the reader spends
+     * elsewhere.
+     */
+    public InputStream watch(URI source, InputStream in) {
+	long floor;
+	try {
+	    floor = Long.parseLong(System.getProperty("haven.launcher.speed-floor", "16384"));
+	} catch(NumberFormatException e) {
+	    floor = 16384;
+	}
+	return(new Watch(source, in, floor));
+    }
+
+    public static class StallException extends IOException {
+	private static final long serialVersionUID = 1L;
+
+	public StallException(String message) {
+	    super(message);
+	}
+    }
+
+    private class Watch extends FilterInputStream {
+	private static final long WINDOW = 5000000000L;
+	private final URI source;
+	private final long floor;
+	private long total = 0, busy = 0, wtime = 0, wbytes = 0;
+	private boolean reported = false;
+
+	Watch(URI source, InputStream in, long floor) {
+	    super(in);
+	    this.source = source;
+	    this.floor = floor;
+	}
+
+	private int got(int rv, long nanos) throws IOException {
+	    busy += nanos;
+	    if(rv < 0) {
+		if(!reported) {
+		    reported = true;
+		    transferred(source, total, busy);
+		}
+		return(rv);
+	    }
+	    total += rv;
+	    wbytes += rv;
+	    wtime += nanos;
+	    if(wtime >= WINDOW) {
+		if((floor > 0) && ((wbytes * 1e9) / wtime < floor)) {
+		    failed(source);
+		    throw(new StallException("Transfer from " + source + " stalled"));
+		}
+		wtime = wbytes = 0;
+	    }
+	    return(rv);
+	}
+
+	public int read() throws IOException {
+	    long start = System.nanoTime();
+	    int rv;
+	    try {
+		rv = in.read();
+	    } catch(IOException e) {
+		failed(source);
+		throw(e);
+	    }
+	    got((rv < 0) ? -1 : 1, System.nanoTime() - start);
+	    return(rv);
+	}
+
+	public int read(byte[] buf, int off, int len) throws IOException {
+	    long start = System.nanoTime();
+	    int rv;
+	    try {
+		rv = in.read(buf, off, len);
+	    } catch(IOException e) {
+		failed(source);
+		throw(e);
+	    }
+	    return(got(rv, System.nanoTime() - start));
+	}
+    }
+}
@@ -58,7 +58,7 @@ public class NativeLib {
     }
 
     public Path extract() throws IOException {
-	Path jar = this.jar.update();
+	Path jar = Workers.get(this.jar.fetch());
 	Path dir = this.jar.metafile("lib");
 	boolean fresh = false;
 	if(!Files.isDirectory(dir)) {
@@ -0,0 +1,138 @@
+/*
+ *  This file is part of the Haven Java Launcher.
+ *  Copyright (C) 2019 Fredrik Tolf <fredrik@dolda2000.com>, and
+ *                     Björn Johannessen <johannessen.bjorn@gmail.com>
+ *
+ *  Redistribution and/or modification of this file is subject to the
+ *  terms of the GNU Lesser General Public License, version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  Other parts of this source tree adhere to other copying
+ *  rights. Please see the file `COPYING' in the root directory of the
+ *  source tree for details.
+ *
+ *  A copy the GNU Lesser General Public License is distributed along
+ *  with the source tree of which this file is a part in the file
+ *  `doc/LPGL-3'. If it is missing for any reason, please see the Free
+ *  Software Foundation's website at <http://www.fsf.org/>, or write
+ *  to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA
+ */
+
+package haven.launcher;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.security.*;
+
+/*
+ * Applies binary patches that the server can send instead of a
+ * whole file, when told which version the cache already has. A
+ * patch is the following, with all numbers big-endian:
+ *
+ *   "HLPATCH1"
+ *   SHA-256 of the old file   (32 bytes)
+ *   length of the new file    (64 bits)
+ *   SHA-256 of the new file   (32 bytes)
+ *   commands, each starting with an opcode byte:
+ *     0: end of patch
+ *     1: offset (64 bits), length (32 bits); copy from the old file
+ *     2: length (32 bits), followed by that many literal bytes
+ *
+ * The result is checked against the length and digest given in the
+ * patch, so a patch against the wrong file, or a broken one, can
+ * never produce anything but an error.
+ */
+public class Patch {
+    public static final String FORMAT = "hlpatch";
+    private static final byte[] magic = "HLPATCH1".getBytes(Utils.utf8);
+
+    public static class FormatException extends IOException {
+	private static final long serialVersionUID = 1L;
+
+	public FormatException(String msg) {
+	    super(msg);
+	}
+    }
+
+    private static MessageDigest sha256() {
+	try {
+	    return(MessageDigest.getInstance("SHA-256"));
+	} catch(NoSuchAlgorithmException e) {
+	    throw(new AssertionError(e));
+	}
+    }
+
+    public static byte[] digest(Path path) throws IOException {
+	return(Utils.digest(path, sha256()));
+    }
+
+    public static void apply(Path base, byte[] basedig, InputStream patch, Path out) throws IOException {
+	DataInputStream in = new DataInputStream(patch);
+	byte[] head = new byte[magic.length], odig = new byte[32], ndig = new byte[32];
+	in.readFully(head);
+	if(!MessageDigest.isEqual(head, magic))
+	    throw(new FormatException("Not a patch"));
+	in.readFully(odig);
+	if(!MessageDigest.isEqual(odig, basedig))
+	    throw(new FormatException("Patch is not for the cached version"));
+	long size = in.readLong();
+	in.readFully(ndig);
+	MessageDigest dig = sha256();
+	long len = 0;
+	byte[] buf = new byte[65536];
+	try(FileChannel src = FileChannel.open(base, StandardOpenOption.READ);
+	    OutputStream dst = new DigestOutputStream(new BufferedOutputStream(Files.newOutputStream(out)), dig)) {
+	    cmds: while(true) {
+		int op = in.readUnsignedByte();
+		switch(op) {
+		case 0:
+		    break cmds;
+		case 1: {
+		    long off = in.readLong();
+		    long n = in.readInt() & 0xffffffffL;
+		    if((off < 0) || (off + n > src.size()))
+			throw(new FormatException("Copy outside of old file"));
+		    for(long end = off + n; off < end;) {
+			ByteBuffer bb = ByteBuffer.wrap(buf, 0, (int)Math.min(buf.length, end - off));
+			while(bb.hasRemaining()) {
+			    int rv = src.read(bb, off + bb.position());
+			    if(rv < 0)
+				throw(new EOFException());
+			}
+			dst.write(buf, 0, bb.limit());
+			off += bb.limit();
+		    }
+		    len += n;
+		    break;
+		}
+		case 2: {
+		    long n = in.readInt() & 0xffffffffL;
+		    for(long left = n; left > 0;) {
+			int rv = in.read(buf, 0, (int)Math.min(buf.length, left));
+			if(rv < 0)
+			    throw(new EOFException());
+			dst.write(buf, 0, rv);
+			left -= rv;
+		    }
+		    len += n;
+		    break;
+		}
+		default:
+		    throw(new FormatException("Unknown patch command: " + op));
+		}
+		if(len > size)
+		    throw(new FormatException("Patch output is too long"));
+	    }
+	}
+	if((len != size) || !MessageDigest.isEqual(dig.digest(), ndig))
+	    throw(new FormatException("Patched file does not match its expected digest"));
+    }
+}
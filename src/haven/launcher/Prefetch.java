@@ -0,0 +1,181 @@
+/*
+ *  This file is part of the Haven Java Launcher.
+ *  Copyright (C) 2019 Fredrik Tolf <fredrik@dolda2000.com>, and
+ *                     Björn Johannessen <johannessen.bjorn@gmail.com>
+ *
+ *  Redistribution and/or modification of this file is subject to the
+ *  terms of the GNU Lesser General Public License, version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  Other parts of this source tree adhere to other copying
+ *  rights. Please see the file `COPYING' in the root directory of the
+ *  source tree for details.
+ *
+ *  A copy the GNU Lesser General Public License is distributed along
+ *  with the source tree of which this file is a part in the file
+ *  `doc/LPGL-3'. If it is missing for any reason, please see the Free
+ *  Software Foundation's website at <http://www.fsf.org/>, or write
+ *  to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA
+ */
+
+package haven.launcher;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.io.*;
+import java.net.*;
+import java.nio.file.*;
+import java.security.*;
+
+/*
+ * Remembers which resources the last successful launch from a given
+ * bootstrap config used, and starts checking all of them at once on
+ * the next start, before the config has even been parsed. Resources
+ * then pick up the result when they are actually asked for, and
+ * whatever was not asked for is simply left unused.
+ */
+public class Prefetch {
+    private static Prefetch current = null;
+    private final Path record;
+    private final Map<URI, Pending> pending = new HashMap<>();
+    private final Map<URI, Resource> used = new LinkedHashMap<>();
+
+    private static class Pending {
+	final AtomicBoolean taken = new AtomicBoolean(false);
+	final Resource res;
+	Future<Cached> task;
+
+	Pending(Resource res) {this.res = res;}
+
+	/* Whether the prediction was made with the same settings as
+	 * the resource is actually fetched with. */
+	boolean matches(Resource res) {
+	    return((this.res.checkint == res.checkint) && new ArrayList<>(this.res.packed).equals(new ArrayList<>(res.packed)));
+	}
+    }
+
+    private Prefetch(Path record) {
+	this.record = record;
+    }
+
+    private static Path record(String plan) {
+	try {
+	    String key = Utils.byte2hex(MessageDigest.getInstance("SHA-256").digest(plan.getBytes(Utils.utf8)));
+	    return(Cache.get().local(".prefetch", key));
+	} catch(NoSuchAlgorithmException e) {
+	    throw(new AssertionError(e));
+	}
+    }
+
+    private void load() throws IOException {
+	if(!Files.exists(record))
+	    return;
+	try(BufferedReader fp = Files.newBufferedReader(record, Utils.utf8)) {
+	    for(String ln = fp.readLine(); ln != null; ln = fp.readLine()) {
+		String[] words = Utils.splitwords(ln);
+		if((words == null) || (words.length < 1))
+		    continue;
+		try {
+		    Resource res = new Resource(new URI(words[0]), Collections.emptyList());
+		    if((words.length > 1) && !words[1].equals("-"))
+			res.referrer(new URI(words[1]));
+		    if(words.length > 2)
+			res.checkint(Long.parseLong(words[2]));
+		    if(words.length > 3)
+			res.packed(Arrays.asList(Arrays.copyOfRange(words, 3, words.length)));
+		    Pending p = new Pending(res);
+		    p.task = Workers.submit(() -> {
+			    if(!p.taken.compareAndSet(false, true))
+				return(null);
+			    return(Cache.get().update(res, false));
+			});
+		    pending.put(res.uri, p);
+		} catch(URISyntaxException | NumberFormatException e) {
+		}
+	    }
+	}
+    }
+
+    public static void start(String plan) {
+	Prefetch pf = new Prefetch(record(plan));
+	try {
+	    pf.load();
+	} catch(IOException e) {
+	    /* Just a prediction, so nothing is lost. */
+	}
+	synchronized(Prefetch.class) {
+	    current = pf;
+	}
+    }
+
+    private static synchronized Prefetch current() {
+	return(current);
+    }
+
+    /* Returns the result of the predicted check of a resource, or
+     * null if there was none or if it failed. */
+    public static Cached claim(Resource res) {
+	Prefetch pf = current();
+	if(pf == null)
+	    return(null);
+	Pending p;
+	synchronized(pf) {
+	    p = pf.pending.remove(res.uri);
+	}
+	/* If the check has not yet begun, it is better for the caller
+	 * to just do it itself than to wait for it. */
+	if((p == null) || p.taken.compareAndSet(false, true) || !p.matches(res))
+	    return(null);
+	try {
+	    return(Workers.get(p.task));
+	} catch(IOException | RuntimeException e) {
+	    return(null);
+	}
+    }
+
+    public static void used(Resource res) {
+	Prefetch pf = current();
+	if(pf == null)
+	    return;
+	synchronized(pf) {
+	    if(!pf.used.containsKey(res.uri))
+		pf.used.put(res.uri, res);
+	}
+    }
+
+    public static void commit() {
+	Prefetch pf = current();
+	if(pf == null)
+	    return;
+	synchronized(pf) {
+	    /* Whatever was predicted but never asked for is not needed,
+	     * so don't spend any more bandwidth on it. */
+	    for(Pending p : pf.pending.values()) {
+		if(p.taken.compareAndSet(false, true))
+		    p.task.cancel(false);
+	    }
+	    pf.pending.clear();
+	    try {
+		Files.createDirectories(pf.record.getParent());
+		Path newp = pf.record.resolveSibling(pf.record.getFileName() + ".new");
+		try(Writer out = Files.newBufferedWriter(newp, Utils.utf8)) {
+		    for(Resource res : pf.used.values()) {
+			out.write(String.format("%s %s %d", res.uri, (res.referrer == null) ? "-" : res.referrer, res.checkint));
+			for(String v : res.packed)
+			    out.write(" " + v);
+			out.write("\n");
+		    }
+		}
+		Files.move(newp, pf.record, StandardCopyOption.REPLACE_EXISTING);
+	    } catch(IOException e) {
+	    }
+	}
+    }
+}
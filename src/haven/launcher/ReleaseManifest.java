@@ -0,0 +1,152 @@
+/*
+ *  This file is part of the Haven Java Launcher.
+ *  Copyright (C) 2019 Fredrik Tolf <fredrik@dolda2000.com>, and
+ *                     Björn Johannessen <johannessen.bjorn@gmail.com>
+ *
+ *  Redistribution and/or modification of this file is subject to the
+ *  terms of the GNU Lesser General Public License, version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  Other parts of this source tree adhere to other copying
+ *  rights. Please see the file `COPYING' in the root directory of the
+ *  source tree for details.
+ *
+ *  A copy the GNU Lesser General Public License is distributed along
+ *  with the source tree of which this file is a part in the file
+ *  `doc/LPGL-3'. If it is missing for any reason, please see the Free
+ *  Software Foundation's website at <http://www.fsf.org/>, or write
+ *  to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA
+ */
+
+package haven.launcher;
+
+import java.util.*;
+import java.util.zip.*;
+import java.io.*;
+import java.net.*;
+import java.nio.file.*;
+
+/*
+ * A list of the files making up a release, with the size and SHA-256
+ * of each. Each line names a file, relative to the list itself, by
+ * URI, size and digest. The list is either a plain text file, or the
+ * entry `release.lst' of a jar file, so that it can be signed like
+ * any other jar.
+ *
+ * Since the list says exactly what the files should be, a file that
+ * is already cached with the right digest needs neither be checked
+ * with its server nor have its signature verified again.
+ */
+public class ReleaseManifest {
+    public static final String ENTRY = "release.lst";
+    public final URI uri;
+    private final Map<URI, Entry> files = new HashMap<>();
+
+    public static class Entry {
+	public final long size;
+	public final String sha256;
+
+	public Entry(long size, String sha256) {
+	    this.size = size;
+	    this.sha256 = sha256.toLowerCase();
+	}
+
+	public boolean equals(Object o) {
+	    return((o instanceof Entry) && (((Entry)o).size == size) && ((Entry)o).sha256.equals(sha256));
+	}
+
+	public int hashCode() {
+	    return(sha256.hashCode());
+	}
+
+	public boolean matches(String sha256) {
+	    return(this.sha256.equalsIgnoreCase(sha256));
+	}
+
+	public boolean matches(Cached file) throws IOException {
+	    String dig = (String)file.props.get("sha256");
+	    return((dig != null) && matches(dig) && (Files.size(file.path) == size));
+	}
+    }
+
+    public ReleaseManifest(URI uri) {
+	this.uri = uri;
+    }
+
+    public void read(Reader in) throws IOException {
+	BufferedReader fp = new BufferedReader(in);
+	for(String ln = fp.readLine(); ln != null; ln = fp.readLine()) {
+	    if((ln.length() > 0) && (ln.charAt(0) == '#'))
+		continue;
+	    String[] words = Utils.splitwords(ln);
+	    if((words == null) || (words.length < 1))
+		continue;
+	    if((words.length < 3) || !words[2].matches("[0-9a-fA-F]{64}"))
+		throw(new IOException("invalid release manifest line: " + ln));
+	    try {
+		files.put(uri.resolve(new URI(words[0])), new Entry(Long.parseLong(words[1]), words[2]));
+	    } catch(URISyntaxException | NumberFormatException e) {
+		throw(new IOException("invalid release manifest line: " + ln, e));
+	    }
+	}
+    }
+
+    public static ReleaseManifest load(Resource res) throws IOException {
+	Path path = res.update();
+	ReleaseManifest ret = new ReleaseManifest(res.uri);
+	byte[] head = new byte[4];
+	boolean jar;
+	try(InputStream fp = Files.newInputStream(path)) {
+	    jar = (fp.read(head) == 4) && Arrays.equals(head, new byte[] {'P', 'K', 3, 4});
+	}
+	if(!jar) {
+	    try(Reader fp = Files.newBufferedReader(path, Utils.utf8)) {
+		ret.read(fp);
+	    }
+	} else {
+	    try(ZipFile zip = new ZipFile(path.toFile())) {
+		ZipEntry ent = zip.getEntry(ENTRY);
+		if(ent == null)
+		    throw(new IOException(res.uri + ": no " + ENTRY + " in release manifest"));
+		try(Reader fp = new InputStreamReader(zip.getInputStream(ent), Utils.utf8)) {
+		    ret.read(fp);
+		}
+	    }
+	}
+	return(ret);
+    }
+
+    public Entry get(URI uri) {
+	return(files.get(uri));
+    }
+
+    public boolean equals(Object o) {
+	if(!(o instanceof ReleaseManifest))
+	    return(false);
+	ReleaseManifest that = (ReleaseManifest)o;
+	return(that.uri.equals(uri) && that.files.equals(files));
+    }
+
+    public int hashCode() {
+	return(uri.hashCode());
+    }
+
+    /* The entry for a resource from the first release manifest it is
+     * validated by that lists it. */
+    public static Entry find(Resource res) {
+	for(Validator val : res.val) {
+	    if(val instanceof Validator.ManifestValidator) {
+		Entry ent = ((Validator.ManifestValidator)val).manifest.get(res.uri);
+		if(ent != null)
+		    return(ent);
+	    }
+	}
+	return(null);
+    }
+}
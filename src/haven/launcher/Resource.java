@@ -30,11 +30,25 @@ import java.util.*;
 import java.io.*;
 import java.net.*;
 import java.nio.file.*;
+import java.util.concurrent.*;
 
 public class Resource {
+    /* How urgently a resource is needed, most urgent first.
+     * Configuration decides what else is needed at all, code is
+     * needed to launch, and cosmetics only make it look nicer. */
+    public static final int CONFIG = 0, CODE = 1, NORMAL = 2, COSMETIC = 3;
     public final URI uri;
     public final Collection<Validator> val;
     public URI referrer;
+    public long checkint = -1;
+    public int priority = NORMAL;
+    public Collection<String> packed = Collections.emptyList();
+    private Future<Path> fetch = null;
+
+    /* Whatever has already been checked during this run, by URI and
+     * validators, so that nothing is checked twice no matter how
+     * many times it is referred to. */
+    private static final Map<Object, CompletableFuture<Path>> checked = new HashMap<>();
 
     public Resource(URI uri, Collection<Validator> val) {
 	this.uri = uri;
@@ -46,11 +60,43 @@ public class Resource {
 	return(this);
     }
 
+    public Resource checkint(long checkint) {
+	this.checkint = checkint;
+	return(this);
+    }
+
+    public Resource packed(Collection<String> packed) {
+	this.packed = packed;
+	return(this);
+    }
+
+    public Resource priority(int priority) {
+	this.priority = priority;
+	return(this);
+    }
+
     private void validate(Cached cf) throws ValidationException {
-	if(!this.val.isEmpty()) {
+	ReleaseManifest.Entry listed = ReleaseManifest.find(this);
+	if(listed != null) {
+	    /* A listed file must be exactly what the list says, and
+	     * nothing else, such as a signature, can vouch for it. */
+	    try {
+		if(listed.matches(cf))
+		    return;
+	    } catch(IOException e) {
+	    }
+	    throw(new ValidationException("Could not validate " + uri + " against its release manifest"));
+	}
+	/* Release manifests say nothing about what they don't list. */
+	Collection<Validator> vals = new ArrayList<>();
+	for(Validator val : this.val) {
+	    if(!(val instanceof Validator.ManifestValidator))
+		vals.add(val);
+	}
+	if(!vals.isEmpty()) {
 	    Collection<ValidationException> errors = new ArrayList<>();
 	    validate: {
-		for(Validator val : this.val) {
+		for(Validator val : vals) {
 		    try {
 			val.validate(cf);
 			break validate;
@@ -66,24 +112,75 @@ public class Resource {
 	}
     }
 
+    private void digests(Cached cf) throws IOException {
+	for(Validator val : this.val) {
+	    if(val instanceof Validator.DigestValidator) {
+		Validator.DigestValidator dv = (Validator.DigestValidator)val;
+		Cache.get().digest(uri, cf, dv.prop, dv.alg);
+	    }
+	}
+    }
+
     public Path metafile(String var) {
 	return(Cache.get().metafile(uri, var));
     }
 
     public Path update() throws IOException {
+	Object key = Arrays.asList(uri, new HashSet<>(val));
+	CompletableFuture<Path> own = new CompletableFuture<>(), prev;
+	synchronized(checked) {
+	    prev = checked.putIfAbsent(key, own);
+	}
+	if(prev != null)
+	    return(Workers.get(prev));
+	try {
+	    Path ret = check();
+	    own.complete(ret);
+	    return(ret);
+	} catch(IOException | RuntimeException | Error e) {
+	    /* Only those already waiting share in a failure; later
+	     * callers get to try again. */
+	    synchronized(checked) {
+		checked.remove(key, own);
+	    }
+	    own.completeExceptionally(e);
+	    throw(e);
+	}
+    }
+
+    private Path check() throws IOException {
 	Cache cache = Cache.get();
-	Cached cf = cache.update(this, false);
+	/* A listed file is known to be current without any check. */
+	Cached cf = (ReleaseManifest.find(this) == null) ? Prefetch.claim(this) : null;
+	if(cf == null)
+	    cf = cache.update(this, false);
+	Prefetch.used(this);
 	try(Status st = Status.current()) {
 	    st.messagef("Validating %s...", Utils.basename(uri));
 	    try {
+		digests(cf);
 		validate(cf);
 	    } catch(ValidationException e) {
 		if(cf.fresh)
 		    throw(e);
 		cf = cache.update(this, true);
+		digests(cf);
 		validate(cf);
 	    }
 	    return(cf.path);
 	}
     }
+
+    public synchronized Future<Path> fetch() {
+	if(fetch == null) {
+	    fetch = Workers.submit(priority, () -> {
+		    try {
+			return(update());
+		    } catch(IOException e) {
+			throw(new IOException("could not update " + uri, e));
+		    }
+		});
+	}
+	return(fetch);
+    }
 }
@@ -0,0 +1,110 @@
+/*
+ *  This file is part of the Haven Java Launcher.
+ *  Copyright (C) 2019 Fredrik Tolf <fredrik@dolda2000.com>, and
+ *                     Björn Johannessen <johannessen.bjorn@gmail.com>
+ *
+ *  Redistribution and/or modification of this file is subject to the
+ *  terms of the GNU Lesser General Public License, version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  Other parts of this source tree adhere to other copying
+ *  rights. Please see the file `COPYING' in the root directory of the
+ *  source tree for details.
+ *
+ *  A copy the GNU Lesser General Public License is distributed along
+ *  with the source tree of which this file is a part in the file
+ *  `doc/LPGL-3'. If it is missing for any reason, please see the Free
+ *  Software Foundation's website at <http://www.fsf.org/>, or write
+ *  to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA
+ */
+
+package haven.launcher;
+
+import java.util.*;
+
+/*
+ * Multiplexes the status reports of several concurrently running
+ * tasks onto one parent status. Transfers are summed into a single
+ * total, which is kept until all forks have finished, so that the
+ * parent sees the progress of the whole batch.
+ */
+public class SharedStatus {
+    public final Status parent;
+    private final Collection<Fork> forks = new ArrayList<>();
+    private int active = 0;
+
+    public SharedStatus(Status parent) {
+	this.parent = parent;
+    }
+
+    private void report() {
+	long size = 0, cur = 0;
+	boolean known = false;
+	for(Fork f : forks) {
+	    if(f.size >= 0) {
+		known = true;
+		size += f.size;
+	    }
+	    cur += f.cur;
+	}
+	parent.transfer(known ? size : -1, cur);
+    }
+
+    public class Fork implements Status {
+	private long size = -1, cur = 0;
+	private boolean done = false;
+
+	public void message(String text) {
+	    synchronized(SharedStatus.this) {
+		parent.message(text);
+	    }
+	}
+
+	public void transfer(long size, long cur) {
+	    synchronized(SharedStatus.this) {
+		this.size = size;
+		this.cur = cur;
+		report();
+	    }
+	}
+
+	public void progress() {
+	    synchronized(SharedStatus.this) {
+		parent.progress();
+	    }
+	}
+
+	public void error(Throwable exc) {
+	    synchronized(SharedStatus.this) {
+		parent.error(exc);
+	    }
+	}
+
+	public boolean command(String[] argv, Config cfg, Config.Environment env) {
+	    return(false);
+	}
+
+	public void dispose() {
+	    synchronized(SharedStatus.this) {
+		if(done)
+		    return;
+		done = true;
+		if(--active == 0)
+		    forks.clear();
+	    }
+	}
+    }
+
+    public synchronized Fork fork() {
+	Fork ret = new Fork();
+	forks.add(ret);
+	active++;
+	return(ret);
+    }
+}
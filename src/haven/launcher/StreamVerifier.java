@@ -0,0 +1,334 @@
+/*
+ *  This file is part of the Haven Java Launcher.
+ *  Copyright (C) 2019 Fredrik Tolf <fredrik@dolda2000.com>, and
+ *                     Björn Johannessen <johannessen.bjorn@gmail.com>
+ *
+ *  Redistribution and/or modification of this file is subject to the
+ *  terms of the GNU Lesser General Public License, version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  Other parts of this source tree adhere to other copying
+ *  rights. Please see the file `COPYING' in the root directory of the
+ *  source tree for details.
+ *
+ *  A copy the GNU Lesser General Public License is distributed along
+ *  with the source tree of which this file is a part in the file
+ *  `doc/LPGL-3'. If it is missing for any reason, please see the Free
+ *  Software Foundation's website at <http://www.fsf.org/>, or write
+ *  to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA
+ */
+
+package haven.launcher;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.jar.*;
+import java.util.zip.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.security.cert.Certificate;
+
+/*
+ * Verifies a jar file while it is still being downloaded, by reading
+ * it as a stream right behind the writer, so that the signers are
+ * known about as soon as the transfer is done.
+ *
+ * A stream only sees the local entry headers, though, while anything
+ * that later uses the file goes by its central directory, and the
+ * two need not agree. Where the stream found each local header is
+ * therefore noted as it goes, and the result is only used if the
+ * central directory points at exactly those headers, with the same
+ * sizes, so that every entry it lists is made of the very bytes
+ * that were verified. Only the central directory itself has to be
+ * read for that. Otherwise, or on any doubt, there is no result, and
+ * the file must be checked in full as usual.
+ *
+ * The stream is read by the CPU pool. Should none of its workers
+ * have got to it by the time the transfer is done, there is no
+ * result either, rather than a wait for it.
+ */
+public class StreamVerifier {
+    private static final int LOCSIG = 0x04034b50, CENSIG = 0x02014b50, ENDSIG = 0x06054b50, ZIP64LOCSIG = 0x07064b50;
+    private final Path file;
+    private final AtomicBoolean started = new AtomicBoolean(false);
+    private final Future<?> task;
+    private long written = 0;
+    private boolean done = false, aborted = false;
+    private Result result = null;
+    /* Only used by the reading worker. */
+    private Follower follow;
+    private Result reading;
+
+    private static class Seen {
+	final ZipEntry ent;
+	final byte[] name;
+	final long off;
+
+	Seen(ZipEntry ent, long off) {
+	    this.ent = ent;
+	    this.name = ent.getName().getBytes(Utils.utf8);
+	    this.off = off;
+	}
+    }
+
+    private static class Result {
+	final List<Seen> entries = new ArrayList<>();
+	Set<Certificate> certs = null;
+	Manifest manifest = null;
+	boolean unsigned = false;
+	Throwable error = null;
+    }
+
+    public StreamVerifier(Path file) {
+	this.file = file;
+	this.task = Workers.cpu().submit(this::run);
+    }
+
+    /* Follows the file as it is written. */
+    private class Follower extends InputStream {
+	private final FileChannel fp;
+	private long pos = 0;
+
+	Follower(FileChannel fp) {this.fp = fp;}
+
+	public int read(byte[] buf, int off, int len) throws IOException {
+	    synchronized(StreamVerifier.this) {
+		while(true) {
+		    if(aborted)
+			throw(new InterruptedIOException());
+		    if(written > pos)
+			break;
+		    if(done)
+			return(-1);
+		    try {
+			StreamVerifier.this.wait();
+		    } catch(InterruptedException e) {
+			throw((IOException)new InterruptedIOException().initCause(e));
+		    }
+		}
+		len = (int)Math.min(len, written - pos);
+	    }
+	    int rv = fp.read(ByteBuffer.wrap(buf, off, len), pos);
+	    if(rv > 0)
+		pos += rv;
+	    return(rv);
+	}
+
+	public int read() throws IOException {
+	    byte[] buf = new byte[1];
+	    return((read(buf, 0, 1) < 0) ? -1 : (buf[0] & 0xff));
+	}
+    }
+
+    /*
+     * Notes where each local header was found. An entry is created
+     * right after its fixed header and name have been read, and
+     * whatever has been read past that is still buffered, on the
+     * pushback stream and what it reads from, neither of which has
+     * anything else available. The constructor already reads the
+     * manifest this way, which is why the offsets are kept out here.
+     */
+    private class Stream extends JarInputStream {
+	Stream(InputStream in) throws IOException {
+	    super(in, true);
+	}
+
+	protected ZipEntry createZipEntry(String name) {
+	    ZipEntry ent = super.createZipEntry(name);
+	    long off;
+	    try {
+		off = follow.pos - in.available() - 30 - name.getBytes(Utils.utf8).length;
+	    } catch(IOException e) {
+		off = -1;
+	    }
+	    reading.entries.add(new Seen(ent, off));
+	    return(ent);
+	}
+    }
+
+    private void run() {
+	if(!started.compareAndSet(false, true))
+	    return;
+	Result res = reading = new Result();
+	/* The file may not have been created yet. */
+	synchronized(this) {
+	    while((written == 0) && !done && !aborted) {
+		try {
+		    wait();
+		} catch(InterruptedException e) {
+		    aborted = true;
+		}
+	    }
+	}
+	try(FileChannel fp = FileChannel.open(file, StandardOpenOption.READ);
+	    JarInputStream jar = new Stream(new BufferedInputStream(follow = new Follower(fp), 65536))) {
+	    res.manifest = jar.getManifest();
+	    byte[] buf = new byte[65536];
+	    for(JarEntry ent = jar.getNextJarEntry(); ent != null; ent = jar.getNextJarEntry()) {
+		if(ent.isDirectory())
+		    continue;
+		/* Entries must be read through for them to be verified. */
+		while(jar.read(buf) >= 0);
+		if(ent.getName().startsWith("META-INF") || res.unsigned)
+		    continue;
+		Certificate[] entc = ent.getCertificates();
+		if((entc == null) || (entc.length < 1)) {
+		    res.unsigned = true;
+		} else if(res.certs == null) {
+		    res.certs = new HashSet<>(Arrays.asList(entc));
+		} else {
+		    res.certs.retainAll(Arrays.asList(entc));
+		}
+	    }
+	} catch(Throwable t) {
+	    res.error = t;
+	}
+	synchronized(this) {
+	    result = res;
+	    notifyAll();
+	}
+    }
+
+    public synchronized void advance(long written) {
+	this.written = written;
+	notifyAll();
+    }
+
+    public synchronized void finish() {
+	done = true;
+	notifyAll();
+    }
+
+    public void abort() {
+	if(started.compareAndSet(false, true))
+	    task.cancel(false);
+	synchronized(this) {
+	    aborted = true;
+	    notifyAll();
+	}
+    }
+
+    private static void readfully(FileChannel fp, ByteBuffer buf, long pos) throws IOException {
+	while(buf.hasRemaining()) {
+	    int rv = fp.read(buf, pos);
+	    if(rv < 0)
+		throw(new EOFException());
+	    pos += rv;
+	}
+	buf.flip();
+    }
+
+    /*
+     * Checks the central directory against what the stream saw. Only
+     * a plain one, right in front of an end record with no comment,
+     * is accepted, so that there is no question of which one any zip
+     * reader would find.
+     */
+    private static boolean matches(FileChannel fp, Result res) throws IOException {
+	long len = fp.size();
+	if(len < 22)
+	    return(false);
+	ByteBuffer end = ByteBuffer.allocate(22).order(ByteOrder.LITTLE_ENDIAN);
+	readfully(fp, end, len - 22);
+	if((end.getInt(0) != ENDSIG) || (end.getShort(20) != 0))
+	    return(false);
+	int total = end.getShort(10) & 0xffff;
+	long cenlen = end.getInt(12) & 0xffffffffL, cenoff = end.getInt(16) & 0xffffffffL;
+	if((end.getShort(4) != 0) || (end.getShort(6) != 0) || ((end.getShort(8) & 0xffff) != total))
+	    return(false);
+	if((cenoff + cenlen != len - 22) || (total != res.entries.size()))
+	    return(false);
+	if(len - 22 >= 20) {
+	    ByteBuffer loc = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+	    readfully(fp, loc, len - 22 - 20);
+	    if(loc.getInt(0) == ZIP64LOCSIG)
+		return(false);
+	}
+	Map<Long, Seen> byoff = new HashMap<>();
+	for(Seen seen : res.entries) {
+	    if(byoff.put(seen.off, seen) != null)
+		return(false);
+	}
+	ByteBuffer cen = ByteBuffer.allocate((int)cenlen).order(ByteOrder.LITTLE_ENDIAN);
+	readfully(fp, cen, cenoff);
+	int manifests = 0, n = 0;
+	for(int p = 0; p < cenlen; n++) {
+	    if((p + 46 > cenlen) || (cen.getInt(p) != CENSIG))
+		return(false);
+	    int nlen = cen.getShort(p + 28) & 0xffff, elen = cen.getShort(p + 30) & 0xffff, clen = cen.getShort(p + 32) & 0xffff;
+	    if(p + 46 + nlen + elen + clen > cenlen)
+		return(false);
+	    byte[] name = new byte[nlen];
+	    cen.position(p + 46);
+	    cen.get(name);
+	    Seen seen = byoff.remove(cen.getInt(p + 42) & 0xffffffffL);
+	    if((seen == null) || !Arrays.equals(name, seen.name))
+		return(false);
+	    long csize = cen.getInt(p + 20) & 0xffffffffL, size = cen.getInt(p + 24) & 0xffffffffL;
+	    if(((cen.getShort(p + 10) & 0xffff) != seen.ent.getMethod()) || (csize != seen.ent.getCompressedSize()) || (size != seen.ent.getSize()) ||
+	       ((cen.getInt(p + 16) & 0xffffffffL) != seen.ent.getCrc()))
+		return(false);
+	    if((seen.ent.getMethod() == ZipEntry.STORED) && (csize != size))
+		return(false);
+	    if(seen.ent.getName().equalsIgnoreCase(JarFile.MANIFEST_NAME))
+		manifests++;
+	    p += 46 + nlen + elen + clen;
+	}
+	if((n != total) || !byoff.isEmpty())
+	    return(false);
+	/* Any manifest must be the one the stream used as such. */
+	return((manifests == 0) ? (res.manifest == null) : ((manifests == 1) && (res.manifest != null)));
+    }
+
+    /*
+     * Returns the signers of the finished file, like Utils.checkjar,
+     * or null if they could not be determined from the stream.
+     */
+    public Certificate[] result() throws IOException {
+	Result res;
+	synchronized(this) {
+	    if(started.compareAndSet(false, true)) {
+		task.cancel(false);
+		return(null);
+	    }
+	    while((result == null) && !aborted) {
+		try {
+		    wait();
+		} catch(InterruptedException e) {
+		    throw((IOException)new InterruptedIOException().initCause(e));
+		}
+	    }
+	    res = result;
+	}
+	if((res == null) || (res.error != null))
+	    return(null);
+	try(FileChannel fp = FileChannel.open(file, StandardOpenOption.READ)) {
+	    if(!matches(fp, res))
+		return(null);
+	}
+	if(res.manifest == null)
+	    return(new Certificate[0]);
+	/* The stream can't see signatures that aren't placed first,
+	 * so don't trust it about a jar being unsigned if it has any. */
+	boolean signatures = false;
+	for(Seen seen : res.entries) {
+	    String unm = seen.ent.getName().toUpperCase();
+	    if(unm.startsWith("META-INF/") && (unm.endsWith(".SF") || unm.endsWith(".RSA") || unm.endsWith(".DSA") || unm.endsWith(".EC")))
+		signatures = true;
+	}
+	if((res.unsigned || (res.certs == null) || res.certs.isEmpty()) && signatures)
+	    return(null);
+	if(res.unsigned || (res.certs == null))
+	    return(new Certificate[0]);
+	return(res.certs.toArray(new Certificate[0]));
+    }
+}
@@ -59,13 +59,13 @@ public class TTYStatus implements Status {
 	out.flush();
     }
 
-    public void message(String text) {
+    public synchronized void message(String text) {
 	reprint(curmsg = (text + " "));
 	prog = 0;
 	lastprog = 0;
     }
 
-    public void transfer(long size, long cur) {
+    public synchronized void transfer(long size, long cur) {
 	long now = System.currentTimeMillis();
 	if((now - lastprog) > INTERVAL) {
 	    reprint(String.format("%s(%d%%)", curmsg, (100 * cur) / size));
@@ -73,7 +73,7 @@ public class TTYStatus implements Status {
 	}
     }
 
-    public void progress() {
+    public synchronized void progress() {
 	long now = System.currentTimeMillis();
 	if((now - lastprog) > INTERVAL) {
 	    reprint(String.format("%s%c", curmsg, progc[prog++ % progc.length]));
@@ -81,7 +81,7 @@ public class TTYStatus implements Status {
 	}
     }
 
-    public void close() {
+    public synchronized void close() {
 	reprint("");
 	curmsg = "";
     }
@@ -100,7 +100,7 @@ public class TTYStatus implements Status {
 	return(false);
     }
 
-    public void error(Throwable exc) {
+    public synchronized void error(Throwable exc) {
 	exc.printStackTrace(out);
 	out.flush();
     }
@@ -0,0 +1,196 @@
+/*
+ *  This file is part of the Haven Java Launcher.
+ *  Copyright (C) 2019 Fredrik Tolf <fredrik@dolda2000.com>, and
+ *                     Björn Johannessen <johannessen.bjorn@gmail.com>
+ *
+ *  Redistribution and/or modification of this file is subject to the
+ *  terms of the GNU Lesser General Public License, version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  Other parts of this source tree adhere to other copying
+ *  rights. Please see the file `COPYING' in the root directory of the
+ *  source tree for details.
+ *
+ *  A copy the GNU Lesser General Public License is distributed along
+ *  with the source tree of which this file is a part in the file
+ *  `doc/LPGL-3'. If it is missing for any reason, please see the Free
+ *  Software Foundation's website at <http://www.fsf.org/>, or write
+ *  to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA
+ */
+
+package haven.launcher;
+
+import java.util.*;
+import java.io.*;
+import java.net.*;
+
+/*
+ * Limits how many transfers run against each host at once, and lets
+ * those waiting in most urgent first. The limit of a host starts low
+ * and is raised for as long as that raises the throughput got from
+ * it, and lowered again when throughput falls, as it does once the
+ * bandwidth is saturated and connections only compete with each
+ * other. The most it is ever raised to is given by
+ * haven.launcher.host-connections.
+ */
+public class Throttle {
+    private static final long SAMPLE = 1 << 20, MINTIME = 250000000;
+    public final int max;
+    private final Map<String, Host> hosts = new HashMap<>();
+    private long seq = 0;
+
+    public Throttle() {
+	this.max = hostmax();
+    }
+
+    /* The most connections that are ever made to one host at once. */
+    public static int hostmax() {
+	int max;
+	try {
+	    max = Integer.parseInt(System.getProperty("haven.launcher.host-connections", "6"));
+	} catch(NumberFormatException e) {
+	    max = 6;
+	}
+	return(Math.max(max, 1));
+    }
+
+    private static class Waiter {
+	final int priority;
+	final long order;
+
+	Waiter(int priority, long order) {
+	    this.priority = priority;
+	    this.order = order;
+	}
+    }
+
+    private class Host {
+	final PriorityQueue<Waiter> waiting = new PriorityQueue<>((a, b) -> (a.priority != b.priority) ?
+								  Integer.compare(a.priority, b.priority) :
+								  Long.compare(a.order, b.order));
+	int limit = Math.min(2, max), active = 0, receiving = 0;
+	boolean full = false;
+	long bytes = 0, busy = 0, mark = 0;
+	double rate = -1;
+
+	/* Time only counts while something is actually being
+	 * received, so that mere checks don't make the host look
+	 * slow. */
+	void tick() {
+	    long now = System.nanoTime();
+	    if(receiving > 0)
+		busy += now - mark;
+	    mark = now;
+	}
+
+	void sample() {
+	    if((bytes < SAMPLE) || (busy < MINTIME))
+		return;
+	    double cur = (bytes * 1e9) / busy;
+	    if(rate < 0) {
+		if(full && (limit < max))
+		    limit++;
+	    } else if(cur > rate * 1.1) {
+		/* Only worth trying more if the limit was reached. */
+		if(full && (limit < max))
+		    limit++;
+	    } else if(cur < rate * 0.8) {
+		if(limit > 1)
+		    limit--;
+	    }
+	    rate = (rate < 0) ? cur : ((rate + cur) / 2);
+	    bytes = busy = 0;
+	    full = false;
+	}
+    }
+
+    public class Slot implements AutoCloseable {
+	private final Host host;
+	private boolean receiving = false, done = false;
+
+	private Slot(Host host) {
+	    this.host = host;
+	}
+
+	/* Called when the transfer proper begins. */
+	public void receiving() {
+	    synchronized(Throttle.this) {
+		if(receiving || done)
+		    return;
+		host.tick();
+		host.receiving++;
+		receiving = true;
+	    }
+	}
+
+	/* Called when the transfer is done with the host, whatever
+	 * else remains to be done with what was received. */
+	public void transferred(long bytes) {
+	    synchronized(Throttle.this) {
+		if(done)
+		    return;
+		done = true;
+		host.active--;
+		if(receiving) {
+		    host.tick();
+		    host.receiving--;
+		    host.bytes += bytes;
+		    host.sample();
+		}
+		Throttle.this.notifyAll();
+	    }
+	}
+
+	public void close() {
+	    transferred(0);
+	}
+    }
+
+    public Slot acquire(URI uri, int priority) throws IOException {
+	String key = uri.getAuthority();
+	if(key == null)
+	    return(null);
+	synchronized(this) {
+	    Host host = hosts.computeIfAbsent(key, k -> new Host());
+	    Waiter w = new Waiter(priority, seq++);
+	    host.waiting.add(w);
+	    try {
+		while((host.active >= host.limit) || (host.waiting.peek() != w))
+		    wait();
+	    } catch(InterruptedException e) {
+		throw((IOException)new InterruptedIOException().initCause(e));
+	    } finally {
+		host.waiting.remove(w);
+		notifyAll();
+	    }
+	    host.active++;
+	    if(host.active >= host.limit)
+		host.full = true;
+	    return(new Slot(host));
+	}
+    }
+
+    /* Takes a slot only if one is free right away, for any further
+     * connections that a transfer can just as well do without. A
+     * transfer must not wait for those while it holds a slot. */
+    public Slot tryacquire(URI uri) {
+	String key = uri.getAuthority();
+	if(key == null)
+	    return(null);
+	synchronized(this) {
+	    Host host = hosts.computeIfAbsent(key, k -> new Host());
+	    if((host.active >= host.limit) || !host.waiting.isEmpty())
+		return(null);
+	    host.active++;
+	    if(host.active >= host.limit)
+		host.full = true;
+	    return(new Slot(host));
+	}
+    }
+}
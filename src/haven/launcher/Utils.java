@@ -28,9 +28,12 @@ package haven.launcher;
 
 import java.util.*;
 import java.util.jar.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.io.*;
 import java.nio.file.*;
 import java.net.*;
+import java.security.MessageDigest;
 import java.security.cert.*;
 
 public class Utils {
@@ -59,6 +62,28 @@ public class Utils {
 	return(buf.toString());
     }
 
+    public static byte[] hex2byte(String hex) {
+	if((hex.length() % 2) != 0)
+	    throw(new IllegalArgumentException("odd-length hex string: " + hex));
+	byte[] ret = new byte[hex.length() / 2];
+	for(int i = 0; i < ret.length; i++) {
+	    int h = Character.digit(hex.charAt(i * 2), 16), l = Character.digit(hex.charAt((i * 2) + 1), 16);
+	    if((h < 0) || (l < 0))
+		throw(new IllegalArgumentException("invalid hex string: " + hex));
+	    ret[i] = (byte)((h << 4) | l);
+	}
+	return(ret);
+    }
+
+    public static byte[] digest(Path path, MessageDigest dig) throws IOException {
+	try(InputStream in = Files.newInputStream(path)) {
+	    byte[] buf = new byte[65536];
+	    for(int rv = in.read(buf); rv >= 0; rv = in.read(buf))
+		dig.update(buf, 0, rv);
+	}
+	return(dig.digest());
+    }
+
     public static String basename(URI uri) {
 	String path = uri.getPath();
 	int p = path.lastIndexOf('/');
@@ -122,18 +147,17 @@ public class Utils {
 	return(words.toArray(new String[0]));
     }
 
-    public static Certificate[] checkjar(Path path, Status prog) throws IOException {
+    /* Returns null if no entries were checked, and an empty set if
+     * they don't all have some signer in common. */
+    private static Set<Certificate> checkentries(Path path, List<String> names, AtomicBoolean abort, Runnable prog) throws IOException {
 	Set<Certificate> ret = null;
 	try(JarFile jar = new JarFile(path.toFile())) {
-	    if(jar.getManifest() == null)
-		return(new Certificate[0]);
 	    byte[] buf = new byte[65536];
-	    for(Enumeration<JarEntry> i = jar.entries(); i.hasMoreElements();) {
-		JarEntry ent = i.nextElement();
-		if(ent.isDirectory())
-		    continue;
-		if(prog != null)
-		    prog.progress();
+	    for(String nm : names) {
+		if(abort.get())
+		    break;
+		JarEntry ent = jar.getJarEntry(nm);
+		prog.run();
 		try(InputStream st = jar.getInputStream(ent)) {
 		    while(st.read(buf, 0, buf.length) >= 0);
 		}
@@ -141,15 +165,94 @@ public class Utils {
 		    continue;
 		Certificate[] entc = ent.getCertificates();
 		if((entc == null) || (entc.length < 1))
-		    return(new Certificate[0]);
+		    return(Collections.emptySet());
 		if(ret == null) {
 		    ret = new HashSet<>(Arrays.asList(entc));
 		} else {
 		    ret.retainAll(Arrays.asList(entc));
 		    if(ret.size() < 1)
-			return(new Certificate[0]);
+			return(ret);
+		}
+	    }
+	}
+	return(ret);
+    }
+
+    /*
+     * Reading an entry of a signed jar all the way through is what
+     * verifies it, so large jars are split into slices that are read
+     * in parallel, each through its own JarFile. The signer sets of
+     * the slices are then intersected in order, which gives the same
+     * result as doing it all in one go.
+     */
+    public static Certificate[] checkjar(Path path, Status prog) throws IOException {
+	List<String> names = new ArrayList<>();
+	try(JarFile jar = new JarFile(path.toFile())) {
+	    if(jar.getManifest() == null)
+		return(new Certificate[0]);
+	    for(Enumeration<JarEntry> i = jar.entries(); i.hasMoreElements();) {
+		JarEntry ent = i.nextElement();
+		if(!ent.isDirectory())
+		    names.add(ent.getName());
+	    }
+	}
+	int nslices = Math.min(Runtime.getRuntime().availableProcessors(), names.size() / 256);
+	AtomicBoolean abort = new AtomicBoolean(false);
+	List<Set<Certificate>> results = new ArrayList<>();
+	if(nslices < 2) {
+	    results.add(checkentries(path, names, abort, () -> {
+			if(prog != null)
+			    prog.progress();
+		    }));
+	} else {
+	    AtomicInteger checked = new AtomicInteger(0);
+	    List<Future<Set<Certificate>>> slices = new ArrayList<>();
+	    for(int i = 0; i < nslices; i++) {
+		List<String> slice = names.subList((names.size() * i) / nslices, (names.size() * (i + 1)) / nslices);
+		slices.add(Workers.cpu().submit(() -> {
+			    try {
+				Set<Certificate> ret = checkentries(path, slice, abort, checked::incrementAndGet);
+				/* An unsigned entry settles it for everyone. */
+				if((ret != null) && ret.isEmpty())
+				    abort.set(true);
+				return(ret);
+			    } catch(IOException | RuntimeException e) {
+				abort.set(true);
+				throw(e);
+			    }
+			}));
+	    }
+	    /* Report progress from here, since the status need not be
+	     * safe to use from other threads. */
+	    int reported = 0;
+	    for(Future<Set<Certificate>> slice : slices) {
+		while(true) {
+		    try {
+			slice.get(50, TimeUnit.MILLISECONDS);
+			break;
+		    } catch(TimeoutException e) {
+		    } catch(InterruptedException | ExecutionException e) {
+			break;
+		    } finally {
+			for(int n = checked.get(); (prog != null) && (reported < n); reported++)
+			    prog.progress();
+		    }
 		}
 	    }
+	    results.addAll(Workers.join(slices));
+	}
+	Set<Certificate> ret = null;
+	for(Set<Certificate> res : results) {
+	    if(res == null)
+		continue;
+	    if(res.isEmpty())
+		return(new Certificate[0]);
+	    if(ret == null)
+		ret = res;
+	    else
+		ret.retainAll(res);
+	    if(ret.size() < 1)
+		return(new Certificate[0]);
 	}
 	if(ret == null)
 	    return(new Certificate[0]);
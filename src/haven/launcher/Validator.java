@@ -27,10 +27,18 @@
 package haven.launcher;
 
 import java.util.*;
+import java.io.*;
+import java.net.*;
 
+/*
+ * Validators are compared by what they accept, so that the same file
+ * under the same validators need only be checked once per run.
+ */
 public interface Validator {
     public void validate(Cached file) throws ValidationException;
 
+    public static final Validator ALWAYS = file -> {};
+
     static class TlsKeyValidator implements Validator {
 	final String key;
 
@@ -42,6 +50,14 @@ public interface Validator {
 		return;
 	    throw(new ValidationException("file not downloaded over tls connection signed with " + key));
 	}
+
+	public boolean equals(Object o) {
+	    return((o instanceof TlsKeyValidator) && ((TlsKeyValidator)o).key.equals(key));
+	}
+
+	public int hashCode() {
+	    return(key.hashCode());
+	}
     }
 
     static class JarKeyValidator implements Validator {
@@ -55,6 +71,75 @@ public interface Validator {
 		return;
 	    throw(new ValidationException("Jar file not signed with " + key));
 	}
+
+	public boolean equals(Object o) {
+	    return((o instanceof JarKeyValidator) && ((JarKeyValidator)o).key.equals(key));
+	}
+
+	public int hashCode() {
+	    return(key.hashCode() + 1);
+	}
+    }
+
+    /* Pins the exact content of a file. The digest is looked up in
+     * the file's info, where it is stored when the file is
+     * fetched. */
+    static class DigestValidator implements Validator {
+	final String prop, alg, digest;
+
+	DigestValidator(String prop, String alg, String digest) {
+	    if(!digest.matches("[0-9a-fA-F]+"))
+		throw(new RuntimeException("invalid " + prop + " digest: " + digest));
+	    this.prop = prop;
+	    this.alg = alg;
+	    this.digest = digest.toLowerCase();
+	}
+
+	public void validate(Cached file) {
+	    if(file.props.containsKey(prop) && ((String)file.props.get(prop)).equalsIgnoreCase(digest))
+		return;
+	    throw(new ValidationException("file does not have " + prop + " digest " + digest));
+	}
+
+	public boolean equals(Object o) {
+	    if(!(o instanceof DigestValidator))
+		return(false);
+	    DigestValidator that = (DigestValidator)o;
+	    return(that.prop.equals(prop) && that.digest.equals(digest));
+	}
+
+	public int hashCode() {
+	    return(digest.hashCode());
+	}
+    }
+
+    /* Only accepts files listed in a release manifest, with the
+     * size and digest it lists them with. */
+    static class ManifestValidator implements Validator {
+	final ReleaseManifest manifest;
+
+	ManifestValidator(ReleaseManifest manifest) {this.manifest = manifest;}
+
+	public void validate(Cached file) throws ValidationException {
+	    URI uri = URI.create((String)file.props.get("source"));
+	    ReleaseManifest.Entry ent = manifest.get(uri);
+	    if(ent == null)
+		throw(new ValidationException("file not listed in release manifest " + manifest.uri));
+	    try {
+		if(ent.matches(file))
+		    return;
+	    } catch(IOException e) {
+	    }
+	    throw(new ValidationException("file does not match release manifest " + manifest.uri));
+	}
+
+	public boolean equals(Object o) {
+	    return((o instanceof ManifestValidator) && ((ManifestValidator)o).manifest.equals(manifest));
+	}
+
+	public int hashCode() {
+	    return(manifest.hashCode());
+	}
     }
 
     public static Validator parse(String spec) {
@@ -73,7 +158,13 @@ public interface Validator {
 	case "jar-cert":
 	    return(new JarKeyValidator(arg));
 	case "always":
-	    return(file -> {});
+	    return(ALWAYS);
+	case "sha256":
+	    return(new DigestValidator(type, "SHA-256", arg));
+	case "sha384":
+	    return(new DigestValidator(type, "SHA-384", arg));
+	case "sha512":
+	    return(new DigestValidator(type, "SHA-512", arg));
 	default:
 	    return(null);
 	}
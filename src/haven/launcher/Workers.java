@@ -0,0 +1,162 @@
+/*
+ *  This file is part of the Haven Java Launcher.
+ *  Copyright (C) 2019 Fredrik Tolf <fredrik@dolda2000.com>, and
+ *                     Björn Johannessen <johannessen.bjorn@gmail.com>
+ *
+ *  Redistribution and/or modification of this file is subject to the
+ *  terms of the GNU Lesser General Public License, version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  Other parts of this source tree adhere to other copying
+ *  rights. Please see the file `COPYING' in the root directory of the
+ *  source tree for details.
+ *
+ *  A copy the GNU Lesser General Public License is distributed along
+ *  with the source tree of which this file is a part in the file
+ *  `doc/LPGL-3'. If it is missing for any reason, please see the Free
+ *  Software Foundation's website at <http://www.fsf.org/>, or write
+ *  to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA
+ */
+
+package haven.launcher;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.io.*;
+
+public class Workers {
+    private static final Map<Status, SharedStatus> groups = new IdentityHashMap<>();
+    private static ExecutorService pool = null;
+
+    public static int nthreads() {
+	try {
+	    int ret = Integer.parseInt(System.getProperty("haven.launcher.threads", "4"));
+	    if(ret > 0)
+		return(ret);
+	} catch(NumberFormatException e) {
+	}
+	return(4);
+    }
+
+    /* Queued tasks are started most urgent first, and in the order
+     * they were submitted otherwise. */
+    private static class Task<T> extends FutureTask<T> implements Comparable<Task<?>> {
+	private static final AtomicLong seq = new AtomicLong(0);
+	final int priority;
+	final long order = seq.getAndIncrement();
+
+	Task(int priority, Callable<T> task) {
+	    super(task);
+	    this.priority = priority;
+	}
+
+	public int compareTo(Task<?> that) {
+	    if(this.priority != that.priority)
+		return(Integer.compare(this.priority, that.priority));
+	    return(Long.compare(this.order, that.order));
+	}
+    }
+
+    private static synchronized ExecutorService pool() {
+	if(pool == null) {
+	    int n = nthreads();
+	    pool = new ThreadPoolExecutor(n, n, 0, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<>(), tgt -> {
+		    Thread th = new Thread(tgt, "Launcher worker");
+		    th.setDaemon(true);
+		    return(th);
+		});
+	}
+	return(pool);
+    }
+
+    private static ExecutorService cpu = null;
+
+    /* CPU-bound work gets its own pool, so that fetch workers can
+     * wait for it without taking up the threads it needs. */
+    public static synchronized ExecutorService cpu() {
+	if(cpu == null) {
+	    cpu = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), tgt -> {
+		    Thread th = new Thread(tgt, "Launcher CPU worker");
+		    th.setDaemon(true);
+		    return(th);
+		});
+	}
+	return(cpu);
+    }
+
+    private static SharedStatus group(Status parent) {
+	synchronized(groups) {
+	    return(groups.computeIfAbsent(parent, SharedStatus::new));
+	}
+    }
+
+    public static <T> Future<T> submit(int priority, Callable<T> task) {
+	SharedStatus.Fork st = group(Status.current()).fork();
+	Task<T> ret = new Task<T>(priority, () -> {
+		Status.current.set(st);
+		try {
+		    return(task.call());
+		} finally {
+		    Status.current.remove();
+		}
+	    }) {
+		/* Also called for tasks cancelled before they ran. */
+		protected void done() {
+		    st.dispose();
+		}
+	    };
+	pool().execute(ret);
+	return(ret);
+    }
+
+    public static <T> Future<T> submit(Callable<T> task) {
+	return(submit(Resource.NORMAL, task));
+    }
+
+    public static <T> T get(Future<T> task) throws IOException {
+	try {
+	    return(task.get());
+	} catch(InterruptedException e) {
+	    throw((IOException)new InterruptedIOException().initCause(e));
+	} catch(ExecutionException e) {
+	    Throwable cause = e.getCause();
+	    if(cause instanceof IOException)
+		throw((IOException)cause);
+	    if(cause instanceof RuntimeException)
+		throw((RuntimeException)cause);
+	    if(cause instanceof Error)
+		throw((Error)cause);
+	    throw(new RuntimeException(cause));
+	}
+    }
+
+    /* Waits for all tasks, so that every failure gets reported
+     * rather than only the first one. */
+    public static <T> List<T> join(Collection<Future<T>> tasks) throws IOException {
+	List<T> ret = new ArrayList<>();
+	Throwable first = null;
+	for(Future<T> task : tasks) {
+	    try {
+		ret.add(get(task));
+	    } catch(IOException | RuntimeException e) {
+		ret.add(null);
+		if(first == null)
+		    first = e;
+		else
+		    first.addSuppressed(e);
+	    }
+	}
+	if(first instanceof IOException)
+	    throw((IOException)first);
+	if(first instanceof RuntimeException)
+	    throw((RuntimeException)first);
+	return(ret);
+    }
+}